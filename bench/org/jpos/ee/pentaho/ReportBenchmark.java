@@ -0,0 +1,267 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
+import org.pentaho.reporting.engine.classic.core.ItemBand;
+import org.pentaho.reporting.engine.classic.core.MasterReport;
+import org.pentaho.reporting.engine.classic.core.elementfactory.TextFieldElementFactory;
+import org.pentaho.reporting.engine.classic.core.modules.parser.bundle.writer.BundleWriter;
+import org.pentaho.reporting.libraries.resourceloader.ResourceManager;
+
+/**
+ * Benchmark of the report generation pipeline against an in-memory HSQLDB.
+ * <p/>
+ * Measures the report definition load (with and without the template cache),
+ * the query and data factory build, and the end-to-end generation for each
+ * output type, for each data set size. Prints throughput and, when the JVM
+ * supports it, bytes allocated per operation.
+ * <p/>
+ * Usage: <code>ReportBenchmark [reportsDir] [rows,...] [outputType,...]
+ * [iterations]</code>, run with jPOS, the module classes and lib/*.jar in the
+ * classpath. Defaults: <code>bench/reports 1000,100000,1000000 all 5</code>.
+ *
+ * @author jpaoletti
+ */
+public class ReportBenchmark {
+
+    private static final String DRIVER = "org.hsqldb.jdbcDriver";
+    private static final String URL = "jdbc:hsqldb:mem:bench";
+    private static final String USER = "sa";
+    private static final int WARMUP = 2;
+    private final File reportFile;
+    private final File sqlFile;
+    private final int iterations;
+    private final ResourceManager resourceManager;
+    private final ReportTemplateCache templateCache = new ReportTemplateCache();
+    private final SqlRegistry sqlRegistry = new SqlRegistry("UTF-8", false);
+    private final PentahoReportDefinition definition = new PentahoReportDefinition();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public ReportBenchmark(File reportsDir, int iterations) throws Exception {
+        this.reportFile = new File(reportsDir, "bench.prpt");
+        this.sqlFile = new File(reportsDir, "bench.sql");
+        this.iterations = iterations;
+        ClassicEngineBoot.getInstance().start();
+        resourceManager = new ResourceManager();
+        resourceManager.registerDefaults();
+        if (!reportFile.exists()) {
+            createReport(reportFile);
+        }
+        definition.setName("bench");
+        definition.setReportFile(reportFile.getPath());
+        definition.setSqlFile(sqlFile.getPath());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File reportsDir = new File(args.length > 0 ? args[0] : "bench/reports");
+        final List<Integer> sizes = new ArrayList<Integer>();
+        for (String s : (args.length > 1 ? args[1] : "1000,100000,1000000").split(",")) {
+            sizes.add(Integer.valueOf(s.trim()));
+        }
+        final List<OutputType> types = new ArrayList<OutputType>();
+        if (args.length > 2 && !"all".equals(args[2])) {
+            for (String s : args[2].split(",")) {
+                types.add(OutputType.valueOf(s.trim().toUpperCase()));
+            }
+        } else {
+            for (OutputType t : OutputType.values()) {
+                types.add(t);
+            }
+        }
+        final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final ReportBenchmark bench = new ReportBenchmark(reportsDir, iterations);
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        bench.populate(max);
+        bench.run(sizes, types);
+    }
+
+    /**
+     * Creates the synthetic transaction table with the given number of rows
+     */
+    public void populate(int rows) throws Exception {
+        Class.forName(DRIVER);
+        final Connection conn = DriverManager.getConnection(URL, USER, "");
+        try {
+            final Statement st = conn.createStatement();
+            st.execute("DROP TABLE BENCH_TX IF EXISTS");
+            st.execute("CREATE TABLE BENCH_TX (ID INTEGER PRIMARY KEY, MERCHANT VARCHAR(32), AMOUNT DECIMAL(12,2), CREATED TIMESTAMP)");
+            st.close();
+            final PreparedStatement ps = conn.prepareStatement("INSERT INTO BENCH_TX VALUES (?, ?, ?, ?)");
+            final long now = System.currentTimeMillis();
+            for (int i = 1; i <= rows; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, "MERCHANT-" + (i % 100));
+                ps.setBigDecimal(3, new java.math.BigDecimal(i % 100000).movePointLeft(2));
+                ps.setTimestamp(4, new Timestamp(now - i * 1000L));
+                ps.addBatch();
+                if (i % 10000 == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+            ps.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void run(List<Integer> sizes, List<OutputType> types) throws Exception {
+        measure("getReportDefinition (parse)", new Task() {
+
+            @Override
+            public void run() throws Exception {
+                newGenerator(0, false).getReportDefinition();
+            }
+        });
+        measure("getReportDefinition (template cache)", new Task() {
+
+            @Override
+            public void run() throws Exception {
+                newGenerator(0, true).getReportDefinition();
+            }
+        });
+        measure("getQuery/getDataFactory", new Task() {
+
+            @Override
+            public void run() throws Exception {
+                final BasicReportGenerator generator = newGenerator(1000, true);
+                generator.getQuery();
+                generator.getDataFactory();
+            }
+        });
+        for (final int size : sizes) {
+            for (final OutputType type : types) {
+                measure(String.format("generateReport %s %d rows", type, size), new Task() {
+
+                    @Override
+                    public void run() throws Exception {
+                        newGenerator(size, true).generateReport(type, new NullOutputStream());
+                    }
+                });
+            }
+        }
+    }
+
+    private BasicReportGenerator newGenerator(int rows, boolean cached) {
+        final BasicReportGenerator generator = new BasicReportGenerator();
+        generator.setConnectionDriver(DRIVER);
+        generator.setConnectionUrl(URL);
+        generator.setConnectionUser(USER);
+        generator.setConnectionPassword("");
+        generator.setReportPath(definition.getReportFile());
+        generator.setQueryPath(definition.getSqlFile());
+        generator.setDefinition(definition);
+        generator.setResourceManager(resourceManager);
+        if (cached) {
+            generator.setTemplateCache(templateCache);
+            generator.setSqlRegistry(sqlRegistry);
+        }
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("SQL_ROWS", rows);
+        generator.setParameters(parameters);
+        return generator;
+    }
+
+    private void measure(String name, Task task) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            task.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        final double perOp = elapsed / 1000000d / iterations;
+        System.out.println(String.format("%-48s %10.3f ms/op %10.2f ops/s %s",
+                name, perOp, 1000d / perOp,
+                allocatedBefore >= 0 ? String.format("%12.1f KB/op", allocated / 1024d / iterations) : ""));
+    }
+
+    /**
+     * @return bytes allocated by the current thread, -1 if not supported
+     */
+    private long allocatedBytes() {
+        try {
+            final Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) m.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Builds the benchmark report: one text field per query column in the
+     * item band.
+     */
+    public static void createReport(File file) throws Exception {
+        final MasterReport report = new MasterReport();
+        report.setName("bench");
+        final ItemBand itemBand = report.getItemBand();
+        final String[] fields = {"ID", "MERCHANT", "AMOUNT", "CREATED"};
+        final float width = 120f;
+        for (int i = 0; i < fields.length; i++) {
+            final TextFieldElementFactory factory = new TextFieldElementFactory();
+            factory.setFieldname(fields[i]);
+            factory.setX(i * width);
+            factory.setY(0f);
+            factory.setMinimumWidth(width);
+            factory.setMinimumHeight(12f);
+            factory.setNullString("-");
+            itemBand.addElement(factory.createElement());
+        }
+        file.getParentFile().mkdirs();
+        BundleWriter.writeReportToZipFile(report, file);
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,4 @@
+SELECT ID, MERCHANT, AMOUNT, CREATED
+  FROM BENCH_TX
+ WHERE ID <= @ROWS@
+ ORDER BY ID
@@ -18,7 +18,28 @@
 package org.jpos.ee.pentaho;
 
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableModel;
 import org.jpos.ee.pentaho.exception.*;
 import org.jpos.util.Log;
 import org.jpos.util.Logger;
@@ -26,6 +47,7 @@ import org.jpos.util.Logger;
 import org.pentaho.reporting.engine.classic.core.*;
 import org.pentaho.reporting.engine.classic.core.ReportProcessingException;
 import org.pentaho.reporting.engine.classic.core.layout.output.AbstractReportProcessor;
+import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.ConnectionProvider;
 import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.DriverConnectionProvider;
 import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.SQLReportDataFactory;
 import org.pentaho.reporting.engine.classic.core.modules.output.pageable.base.PageableReportProcessor;
@@ -38,6 +60,8 @@ import org.pentaho.reporting.engine.classic.core.modules.output.table.html.HtmlO
 import org.pentaho.reporting.engine.classic.core.modules.output.table.html.HtmlPrinter;
 import org.pentaho.reporting.engine.classic.core.modules.output.table.html.StreamHtmlOutputProcessor;
 import org.pentaho.reporting.engine.classic.core.modules.output.table.xls.FlowExcelOutputProcessor;
+import org.pentaho.reporting.engine.classic.core.util.CloseableTableModel;
+import org.pentaho.reporting.engine.classic.core.util.TypedTableModel;
 import org.pentaho.reporting.libraries.repository.ContentLocation;
 import org.pentaho.reporting.libraries.repository.DefaultNameGenerator;
 import org.pentaho.reporting.libraries.repository.stream.StreamRepository;
@@ -60,13 +84,32 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
     private String connectionPassword;
     private Log log;
     private boolean debug = false;
+    private PentahoReportDefinition definition;
+    private ReportTemplateCache templateCache;
+    private ResourceManager resourceManager;
+    private ConnectionProvider connectionProvider;
+    private ReportResultCache resultCache;
+    private QueryResultCache queryCache;
+    private SqlRegistry sqlRegistry;
+    private String queryEncoding = "UTF-8";
+    private int fetchSize = 1000;
+    private File tempDir;
+    private int fileBufferSize = AtomicFileOutputStream.DEFAULT_BUFFER_SIZE;
+    private boolean fileSync;
+    private ReportMetrics metrics;
+    private boolean logRuns;
+    private ReportRun run;
+    private int warmUpRows;
 
     /**
      * Performs the basic initialization required to generate a report
      */
     public AbstractReportGenerator() {
-        // Initialize the reporting engine
-        ClassicEngineBoot.getInstance().start();
+        // Initialize the reporting engine, unless the QBean already did it
+        final ClassicEngineBoot boot = ClassicEngineBoot.getInstance();
+        if (!boot.isBootDone()) {
+            boot.start();
+        }
     }
 
     protected void debug(String s) {
@@ -98,41 +141,108 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
             return null;
         }
 
+        final ConnectionProvider connection = createConnectionProvider();
+        final PentahoReportDefinition def = getDefinition();
+        if (def != null && !PentahoReportDefinition.DATA_STORE_HEAP.equals(def.getDataStore())) {
+            return getOffHeapDataFactory(connection, def);
+        }
+        final Map<String, Object> queryParameters = getQueryParameters();
+        final BoundSQLReportDataFactory dataFactory = new BoundSQLReportDataFactory(
+                connection, queryParameters != null ? queryParameters : Collections.<String, Object>emptyMap());
+        dataFactory.setReportRun(getRun());
+        if (def != null) {
+            dataFactory.setFetchSize(def.getFetchSize());
+            dataFactory.setMaxRows(getMaxRows(def));
+            dataFactory.setQueryTimeout(def.getQueryTimeout());
+            dataFactory.setStreamingCursor(def.isStreamingCursor());
+            dataFactory.setStreamingFetchSize(getFetchSize());
+            dataFactory.setQueryCache(getQueryCache(), def.getQueryCacheTtl());
+            dataFactory.setDataSource(def.getDataSource());
+        }
+        String sql = getQuery();
+        debug(sql);
+        dataFactory.setQuery(QUERY_NAME, sql);
+        return dataFactory;
+    }
+
+    private DataFactory getOffHeapDataFactory(ConnectionProvider connection, PentahoReportDefinition def) throws ReportException {
+        final List<Object> values = new ArrayList<Object>();
+        final String sql = getQueryTemplate().toJdbcQuery(def.getLiteralParameters(), getQueryParameters(), values);
+        debug(sql);
+        final OffHeapSQLDataFactory dataFactory = new OffHeapSQLDataFactory(
+                connection, QUERY_NAME, sql, values, PentahoReportDefinition.DATA_STORE_MAPPED.equals(def.getDataStore()));
+        dataFactory.setReportRun(getRun());
+        dataFactory.setFetchSize(def.getFetchSize() != 0 ? def.getFetchSize() : getFetchSize());
+        dataFactory.setStreamingCursor(def.isStreamingCursor() && def.getFetchSize() == 0);
+        dataFactory.setMaxRows(getMaxRows(def));
+        dataFactory.setQueryTimeout(def.getQueryTimeout());
+        dataFactory.setTempDir(getTempDir());
+        return dataFactory;
+    }
+
+    /**
+     * @return the row limit of the report query, lowered to the warm-up rows
+     * during a warm-up
+     */
+    private int getMaxRows(PentahoReportDefinition def) {
+        if (warmUpRows <= 0) {
+            return def.getMaxRows();
+        }
+        return def.getMaxRows() > 0 ? Math.min(def.getMaxRows(), warmUpRows) : warmUpRows;
+    }
+
+    /**
+     * Returns the shared connection provider or, if there is none, a new
+     * provider for the configured driver and url
+     */
+    protected ConnectionProvider createConnectionProvider() {
+        if (getConnectionProvider() != null) {
+            debug("Using pooled connection");
+            return getConnectionProvider();
+        }
         final DriverConnectionProvider connection = new DriverConnectionProvider();
         debug(String.format("Using connection info: [%s][%s][%s][%s]", getConnectionDriver(), getConnectionUrl(), getConnectionUser(), "****"));
         connection.setDriver(getConnectionDriver());
         connection.setUrl(getConnectionUrl());
         connection.setProperty(USER, getConnectionUser());
         connection.setProperty(PASSWORD, getConnectionPassword());
+        return connection;
+    }
 
-        final SQLReportDataFactory dataFactory = new SQLReportDataFactory(connection);
-        String sql = getQuery();
-        debug(sql);
-        dataFactory.setQuery(QUERY_NAME, sql);
-        return dataFactory;
+    /**
+     * Returns the values bound to the <code>${name}</code> references of the
+     * query, besides the report parameters.
+     *
+     * @return the bound values or <code>null</code> if there are none
+     */
+    protected Map<String, Object> getQueryParameters() {
+        return null;
     }
 
     protected String getQuery() throws QueryNotFoundException {
-        StringBuilder sb = new StringBuilder("\n");
+        return getQueryTemplate().getSql();
+    }
+
+    /**
+     * Returns the parsed report query, from the shared registry when there
+     * is one
+     *
+     * @return the report query
+     * @throws QueryNotFoundException
+     */
+    protected SqlTemplate getQueryTemplate() throws QueryNotFoundException {
+        debug(String.format("Using query at [%s]", getQueryPath()));
+        if (getQueryPath() == null) {
+            throw new QueryNotFoundException("No query set");
+        }
         try {
-            debug(String.format("Using query at [%s]", getQueryPath()));
-            final File query = new File(getQueryPath());
-            FileInputStream fis = null;
-            BufferedInputStream bis = null;
-            DataInputStream dis = null;
-            fis = new FileInputStream(query);
-            bis = new BufferedInputStream(fis);
-            dis = new DataInputStream(bis);
-            while (dis.available() != 0) {
-                sb.append((char) dis.read());
+            if (getSqlRegistry() != null) {
+                return getSqlRegistry().get(getQueryPath());
             }
-            fis.close();
-            bis.close();
-            dis.close();
+            return new SqlTemplate(SqlRegistry.read(new File(getQueryPath()), getQueryEncoding()));
         } catch (Exception e) {
             throw new QueryNotFoundException(e);
         }
-        return sb.toString();
     }
 
     /**
@@ -163,14 +273,18 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
         }
         final File file = new File(outputFilename);
 
-        OutputStream outputStream = null;
+        AtomicFileOutputStream outputStream = null;
         try {
             try {
-                outputStream = new BufferedOutputStream(new FileOutputStream(file));
+                outputStream = new AtomicFileOutputStream(file, getFileBufferSize(), isFileSync());
+                if (getMetrics() != null && getDefinition() != null) {
+                    outputStream.preallocate(getMetrics().getLastBytes(getDefinition().getName(), outputType));
+                }
                 generateReport(outputType, outputStream);
+                outputStream.close();
             } finally {
                 if (outputStream != null) {
-                    outputStream.close();
+                    outputStream.abort();
                 }
             }
         } catch (ReportException e) {
@@ -207,9 +321,269 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
             throw new IllegalArgumentException("The output stream was not specified");
         }
 
+        final ReportRun reportRun = new ReportRun(getDefinition() != null ? getDefinition().getName() : getReportPath(), outputType);
+        final CountingOutputStream counter = new CountingOutputStream(outputStream);
+        run = reportRun;
+        try {
+            final DeflaterOutputStream compressor = compress(counter, outputType);
+            generateCachedReport(outputType, compressor != null ? compressor : counter);
+            if (compressor != null) {
+                try {
+                    compressor.finish();
+                } catch (IOException e) {
+                    throw new InvalidOutputException(e);
+                }
+            }
+            return outputStream;
+        } catch (ReportException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } catch (ReportProcessingException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } finally {
+            run = null;
+            reportRun.setBytes(counter.getCount());
+            reportRun.finish();
+            logRun(reportRun);
+        }
+    }
+
+    /**
+     * @return a stream compressing into the output as configured in the
+     * report definition, <code>null</code> if it is not compressed
+     */
+    private DeflaterOutputStream compress(OutputStream outputStream, OutputType outputType) throws InvalidOutputException {
+        final PentahoReportDefinition def = getDefinition();
+        if (def == null || def.getCompression() == null) {
+            return null;
+        }
+        try {
+            return ReportCompression.wrap(outputStream, def.getCompression(), def.getCompressionLevel(), def.getName() + "." + outputType.getExtension());
+        } catch (IOException e) {
+            throw new InvalidOutputException(e);
+        }
+    }
+
+    private void generateCachedReport(final OutputType outputType, OutputStream outputStream) throws ReportException, ReportProcessingException {
+        final ReportResultCache cache = getResultCache();
+        if (cache == null || getDefinition() == null || getDefinition().getCacheTtl() <= 0) {
+            processReport(outputType, outputStream);
+            return;
+        }
+        final String key = ReportResultCache.key(getDefinition().getName(), parameters, outputType);
+        final byte[] cached = cache.get(key);
+        if (cached != null) {
+            debug(String.format("Using cached report %s", key));
+            getRun().setCached(true);
+            try {
+                outputStream.write(cached);
+            } catch (IOException e) {
+                throw new InvalidOutputException(e);
+            }
+            return;
+        }
+        final ReportResultCache.CapturingOutputStream capture = cache.capture(outputStream);
+        processReport(outputType, capture);
+        final byte[] result = capture.getCaptured();
+        if (result != null) {
+            cache.put(key, result, getDefinition().getCacheTtl());
+        }
+    }
+
+    /**
+     * Generates the report in several output types from a single run of its
+     * query. The rows are read once and every PDF, EXCEL and HTML output is
+     * laid out from them, one after the other. Streamed types never hold the
+     * rows, so each one runs its own forward only query. Reports without a
+     * connection use the query of their definition, once per output.
+     * Each output is compressed, cached and recorded as a run of its type,
+     * as with {@link #generateReport(OutputType, OutputStream)}.
+     *
+     * @param outputs stream of each output type. They are not closed.
+     * @return the given outputs
+     */
+    @Override
+    public Map<OutputType, OutputStream> generateReports(final Map<OutputType, OutputStream> outputs) throws ReportException, ReportProcessingException {
+        if (outputs == null || outputs.isEmpty()) {
+            throw new IllegalArgumentException("No output was specified");
+        }
+        final List<OutputType> layoutTypes = new ArrayList<OutputType>();
+        for (Map.Entry<OutputType, OutputStream> entry : outputs.entrySet()) {
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException(String.format("The %s output stream was not specified", entry.getKey()));
+            }
+            if (!entry.getKey().isStreamed()) {
+                layoutTypes.add(entry.getKey());
+            }
+        }
+        if (layoutTypes.size() > 1 && getConnectionDriver() != null) {
+            generateShared(layoutTypes, outputs);
+        } else {
+            for (OutputType outputType : layoutTypes) {
+                generateReport(outputType, outputs.get(outputType));
+            }
+        }
+        for (Map.Entry<OutputType, OutputStream> entry : outputs.entrySet()) {
+            if (entry.getKey().isStreamed()) {
+                generateReport(entry.getKey(), entry.getValue());
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Lays out each output type from the rows of one query. The query is run
+     * for the first type not found in the result cache, and its run records
+     * the definition, data factory and query times.
+     */
+    private void generateShared(List<OutputType> outputTypes, Map<OutputType, OutputStream> outputs) throws ReportException, ReportProcessingException {
+        final PentahoReportDefinition def = getDefinition();
+        final ReportResultCache cache = def != null && def.getCacheTtl() > 0 ? getResultCache() : null;
+        MasterReport template = null;
+        DataFactory dataFactory = null;
+        TableModel data = null;
+        try {
+            for (OutputType outputType : outputTypes) {
+                final ReportRun reportRun = new ReportRun(def != null ? def.getName() : getReportPath(), outputType);
+                final CountingOutputStream counter = new CountingOutputStream(outputs.get(outputType));
+                run = reportRun;
+                try {
+                    final DeflaterOutputStream compressor = compress(counter, outputType);
+                    final OutputStream out = compressor != null ? compressor : counter;
+                    final String key = cache != null ? ReportResultCache.key(def.getName(), parameters, outputType) : null;
+                    final byte[] cached = key != null ? cache.get(key) : null;
+                    if (cached != null) {
+                        debug(String.format("Using cached report %s", key));
+                        reportRun.setCached(true);
+                        out.write(cached);
+                    } else {
+                        if (data == null) {
+                            reportRun.begin();
+                            template = getReportDefinition();
+                            reportRun.end(ReportRun.DEFINITION);
+                            setReportParameters(template);
+                            reportRun.begin();
+                            dataFactory = getDataFactory();
+                            reportRun.end(ReportRun.DATA_FACTORY);
+                            dataFactory.open();
+                            data = dataFactory.queryData(QUERY_NAME, template.getParameterValues());
+                        } else {
+                            reportRun.addRows(data.getRowCount());
+                        }
+                        final MasterReport report;
+                        try {
+                            report = (MasterReport) template.clone();
+                        } catch (CloneNotSupportedException e) {
+                            throw new org.jpos.ee.pentaho.exception.ReportProcessingException(e);
+                        }
+                        report.setDataFactory(new TableDataFactory(QUERY_NAME, shared(data)));
+                        report.setQuery(QUERY_NAME);
+                        setReportParameters(report);
+                        final ReportResultCache.CapturingOutputStream capture = key != null ? cache.capture(out) : null;
+                        final long start = System.currentTimeMillis();
+                        render(report, outputType, capture != null ? capture : out);
+                        reportRun.add(ReportRun.LAYOUT, System.currentTimeMillis() - start);
+                        if (capture != null && capture.getCaptured() != null) {
+                            cache.put(key, capture.getCaptured(), def.getCacheTtl());
+                        }
+                    }
+                    if (compressor != null) {
+                        compressor.finish();
+                    }
+                } catch (IOException e) {
+                    final InvalidOutputException failure = new InvalidOutputException(e);
+                    reportRun.setFailure(failure);
+                    throw failure;
+                } catch (ReportException e) {
+                    reportRun.setFailure(e);
+                    throw e;
+                } catch (ReportProcessingException e) {
+                    reportRun.setFailure(e);
+                    throw e;
+                } catch (RuntimeException e) {
+                    reportRun.setFailure(e);
+                    throw e;
+                } finally {
+                    run = null;
+                    reportRun.setBytes(counter.getCount());
+                    reportRun.finish();
+                    logRun(reportRun);
+                }
+            }
+        } finally {
+            if (data instanceof CloseableTableModel) {
+                ((CloseableTableModel) data).close();
+            }
+            if (dataFactory != null) {
+                dataFactory.close();
+            }
+        }
+    }
+
+    /**
+     * The engine closes the table models implementing CloseableTableModel
+     * once a report is processed, which empties the SQL results. Returns a
+     * view of the rows with the other interfaces of the model, so it can be
+     * processed several times; the caller closes the rows afterwards.
+     */
+    private static TableModel shared(final TableModel data) {
+        final Set<Class> interfaces = new LinkedHashSet<Class>();
+        for (Class c = data.getClass(); c != null; c = c.getSuperclass()) {
+            for (Class i : c.getInterfaces()) {
+                if (Modifier.isPublic(i.getModifiers()) && i != CloseableTableModel.class) {
+                    interfaces.add(i);
+                }
+            }
+        }
+        interfaces.add(TableModel.class);
+        return (TableModel) Proxy.newProxyInstance(
+                AbstractReportGenerator.class.getClassLoader(),
+                interfaces.toArray(new Class[interfaces.size()]),
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(data, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Records the run in the metrics and logs its summary
+     */
+    protected void logRun(ReportRun reportRun) {
+        if (getMetrics() != null) {
+            getMetrics().record(reportRun);
+        }
+        if (isLogRuns() && getLog() != null) {
+            Logger.log(getLog().createInfo(reportRun));
+        }
+    }
+
+    /**
+     * Generates the report without looking at the result cache
+     */
+    protected OutputStream processReport(final OutputType outputType, OutputStream outputStream) throws ReportException, ReportProcessingException {
+
+        if (outputType.isStreamed()) {
+            return streamReport(outputType, outputStream);
+        }
         // Get the report and data factory
+        final ReportRun reportRun = getRun();
+        reportRun.begin();
         final MasterReport report = getReportDefinition();
+        reportRun.end(ReportRun.DEFINITION);
+        reportRun.begin();
         final DataFactory dataFactory = getDataFactory();
+        reportRun.end(ReportRun.DATA_FACTORY);
 
         // Set the data factory for the report
         if (dataFactory != null) {
@@ -218,13 +592,142 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
         }
 
         // Add any parameters to the report
+        setReportParameters(report);
+
+        final long start = System.currentTimeMillis();
+        render(report, outputType, outputStream);
+        reportRun.add(ReportRun.LAYOUT, System.currentTimeMillis() - start - reportRun.get(ReportRun.QUERY));
+        debug("Report successfuly created");
+        return outputStream;
+    }
+
+    /**
+     * Renders the report into a discarded output, so its template, fonts and
+     * the classes of the output type are loaded before the first real run.
+     * With <code>rows</code> 0 the report is rendered without data, otherwise
+     * its query is run, limited to that many rows, with the generator
+     * parameters. Runs are not recorded nor cached.
+     *
+     * @param outputType a non streamed output type
+     * @param rows maximum rows of the query, 0 to render without data
+     * @return bytes rendered
+     */
+    public long warmUp(final OutputType outputType, int rows) throws ReportException, ReportProcessingException {
+        if (outputType.isStreamed()) {
+            throw new IllegalArgumentException(String.format("%s output has no layout to warm up", outputType));
+        }
+        final MasterReport report = getReportDefinition();
+        final DataFactory dataFactory;
+        if (rows > 0) {
+            warmUpRows = rows;
+            try {
+                dataFactory = getDataFactory();
+            } finally {
+                warmUpRows = 0;
+            }
+            report.setQueryLimit(rows);
+        } else {
+            dataFactory = new TableDataFactory(QUERY_NAME, new DefaultTableModel());
+        }
+        if (dataFactory != null) {
+            report.setQuery(QUERY_NAME);
+            report.setDataFactory(dataFactory);
+        }
+        setReportParameters(report);
+        final CountingOutputStream counter = new CountingOutputStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        render(report, outputType, counter);
+        return counter.getCount();
+    }
+
+    /**
+     * Runs the query and paginates the report for an HTML viewer. The pages
+     * are rendered later from the returned report, which has to be closed.
+     * The rows are copied to the heap and the data factory is closed before
+     * paginating, so the report does not keep a connection of the pool while
+     * it is kept between requests. The run is recorded as an HTML run without
+     * output.
+     *
+     * @return the paginated report
+     */
+    @Override
+    public PagedHtmlReport generatePagedReport() throws ReportException, ReportProcessingException {
+        final ReportRun reportRun = new ReportRun(getDefinition() != null ? getDefinition().getName() : getReportPath(), OutputType.HTML);
+        run = reportRun;
+        try {
+            reportRun.begin();
+            final MasterReport report = getReportDefinition();
+            reportRun.end(ReportRun.DEFINITION);
+            reportRun.begin();
+            final DataFactory dataFactory = getDataFactory();
+            reportRun.end(ReportRun.DATA_FACTORY);
+            setReportParameters(report);
+            if (dataFactory != null) {
+                report.setQuery(QUERY_NAME);
+                report.setDataFactory(new TableDataFactory(QUERY_NAME, copyRows(dataFactory, report)));
+            }
+            final PagedHtmlReport paged = new PagedHtmlReport(report);
+            reportRun.add(ReportRun.LAYOUT, paged.getPaginationTime());
+            return paged;
+        } catch (ReportException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } catch (ReportProcessingException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            reportRun.setFailure(e);
+            throw e;
+        } finally {
+            run = null;
+            reportRun.finish();
+            logRun(reportRun);
+        }
+    }
+
+    /**
+     * Runs the report query and copies its rows to the heap, closing the data
+     * factory, and with it its connection and result
+     */
+    private static TableModel copyRows(DataFactory dataFactory, MasterReport report) throws ReportDataFactoryException {
+        dataFactory.open();
+        try {
+            final TableModel data = dataFactory.queryData(QUERY_NAME, report.getParameterValues());
+            if (data instanceof QueryResultCache.ColumnTable) {
+                return data;
+            }
+            final TableModel res = new QueryResultCache.ColumnTable(data);
+            if (data instanceof CloseableTableModel) {
+                ((CloseableTableModel) data).close();
+            }
+            return res;
+        } finally {
+            dataFactory.close();
+        }
+    }
+
+    private void setReportParameters(MasterReport report) {
         final Map<String, Object> reportParameters = getParameters();
         if (null != reportParameters) {
             for (String key : reportParameters.keySet()) {
                 report.getParameterValues().put(key, reportParameters.get(key));
             }
         }
+    }
 
+    /**
+     * Processes a report, with its data factory and parameters already set,
+     * into the given output
+     */
+    protected void render(final MasterReport report, final OutputType outputType, OutputStream outputStream) throws ReportProcessingException {
         // Prepare to generate the report
         AbstractReportProcessor reportProcessor = null;
         try {
@@ -262,9 +765,8 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
                     break;
                 }
             }
+            reportProcessor.setHandleInterruptedState(true);
             reportProcessor.processReport();
-            debug("Report successfuly created");
-            return outputStream;
         } finally {
             if (reportProcessor != null) {
                 reportProcessor.close();
@@ -272,6 +774,227 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
         }
     }
 
+    /**
+     * Runs the report query with a forward only cursor and writes each row
+     * directly into the output stream, using the fields of the report item
+     * band as columns.
+     */
+    protected OutputStream streamReport(final OutputType outputType, OutputStream outputStream) throws ReportException {
+        if (getConnectionDriver() == null && getConnectionProvider() == null) {
+            throw new InvalidOutputException(String.format("%s output requires a connection", outputType));
+        }
+        final ReportRun reportRun = getRun();
+        reportRun.begin();
+        final List<String> fields = ResultSetStreamer.getFields(getReportDefinition());
+        reportRun.end(ReportRun.DEFINITION);
+        final List<Object> values = new ArrayList<Object>();
+        final Set<String> literals = getDefinition() != null ? getDefinition().getLiteralParameters() : null;
+        final String sql = getQueryTemplate().toJdbcQuery(literals, getQueryParameters(), values);
+        debug(sql);
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = createConnectionProvider().createConnection(null, null);
+            st = prepareStatement(conn, sql, values);
+            reportRun.begin();
+            rs = st.executeQuery();
+            reportRun.end(ReportRun.QUERY);
+            final ResultSetStreamer streamer = new ResultSetStreamer(outputType, fields);
+            streamer.setTempDir(getTempDir());
+            reportRun.begin();
+            final long rows = streamer.write(rs, outputStream);
+            reportRun.end(ReportRun.LAYOUT);
+            reportRun.addRows(rows);
+            debug(String.format("Report successfuly streamed, %d rows", rows));
+            return outputStream;
+        } catch (SQLException e) {
+            throw new org.jpos.ee.pentaho.exception.ReportProcessingException(e);
+        } catch (IOException e) {
+            throw new InvalidOutputException(e);
+        } finally {
+            close(rs, st, conn);
+        }
+    }
+
+    /**
+     * Runs the report query once and renders one report per value of the
+     * split column of the report definition, writing each of them to the
+     * sink. The query must be ordered by the split column; the rows of one
+     * group at a time are kept in memory. The split value is added to the
+     * parameters given to the sink under the column name.
+     *
+     * @return the status and timing of each group
+     */
+    public BatchResult generateSplitReport(final OutputType outputType, final ReportSink sink) throws ReportException {
+        final String column = getDefinition() != null ? getDefinition().getSplitColumn() : null;
+        if (column == null) {
+            throw new ReportException("Report has no split column");
+        }
+        if (outputType.isStreamed()) {
+            throw new InvalidOutputException(String.format("%s output can not be split", outputType));
+        }
+        if (getConnectionDriver() == null && getConnectionProvider() == null) {
+            throw new InvalidOutputException("Split reports require a connection");
+        }
+        final MasterReport template = getReportDefinition();
+        final List<Object> values = new ArrayList<Object>();
+        final String sql = getQueryTemplate().toJdbcQuery(getDefinition().getLiteralParameters(), getQueryParameters(), values);
+        debug(sql);
+        final BatchResult result = new BatchResult(getDefinition().getName(), outputType, 0);
+        final long start = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = createConnectionProvider().createConnection(null, null);
+            st = prepareStatement(conn, sql, values);
+            rs = st.executeQuery();
+            final ResultSetMetaData md = rs.getMetaData();
+            final String[] names = new String[md.getColumnCount()];
+            final Class[] types = new Class[names.length];
+            int keyColumn = -1;
+            for (int i = 0; i < names.length; i++) {
+                names[i] = md.getColumnLabel(i + 1);
+                types[i] = columnClass(md.getColumnClassName(i + 1));
+                if (names[i].equalsIgnoreCase(column)) {
+                    keyColumn = i;
+                }
+            }
+            if (keyColumn < 0) {
+                throw new QueryNotFoundException(String.format("Split column '%s' not found in query", column));
+            }
+            final Set<Object> seen = new HashSet<Object>();
+            TypedTableModel group = null;
+            Object key = null;
+            int index = 0;
+            while (rs.next()) {
+                final Object[] row = new Object[names.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                final Object k = row[keyColumn];
+                if (group == null || (k == null ? key != null : !k.equals(key))) {
+                    if (group != null) {
+                        renderGroup(template, outputType, sink, result, index++, column, key, group);
+                    }
+                    if (!seen.add(k)) {
+                        throw new org.jpos.ee.pentaho.exception.ReportProcessingException(
+                                String.format("Query is not ordered by split column '%s'", column));
+                    }
+                    key = k;
+                    group = new TypedTableModel(names, types);
+                }
+                group.addRow(row);
+            }
+            if (group != null) {
+                renderGroup(template, outputType, sink, result, index, column, key, group);
+            }
+        } catch (SQLException e) {
+            throw new org.jpos.ee.pentaho.exception.ReportProcessingException(e);
+        } finally {
+            close(rs, st, conn);
+            result.setElapsed(System.currentTimeMillis() - start);
+        }
+        return result;
+    }
+
+    private void renderGroup(
+            MasterReport template, OutputType outputType, ReportSink sink, BatchResult result,
+            int index, String column, Object key, TableModel data) {
+        final long start = System.currentTimeMillis();
+        final Map<String, Object> itemParameters = new HashMap<String, Object>();
+        if (parameters != null) {
+            itemParameters.putAll(parameters);
+        }
+        itemParameters.put(column, key);
+        Throwable error = null;
+        OutputStream out = null;
+        try {
+            final MasterReport report = (MasterReport) template.clone();
+            report.setDataFactory(new TableDataFactory(QUERY_NAME, data));
+            report.setQuery(QUERY_NAME);
+            setReportParameters(report);
+            out = sink.open(index, itemParameters);
+            final DeflaterOutputStream compressor = compress(out, outputType);
+            render(report, outputType, compressor != null ? compressor : out);
+            if (compressor != null) {
+                compressor.finish();
+            }
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            if (out != null) {
+                try {
+                    sink.close(index, out, error == null);
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+        debug(String.format("Split %s=%s rendered, %d rows", column, key, data.getRowCount()));
+        result.set(new BatchResult.Item(index, itemParameters, System.currentTimeMillis() - start, error));
+    }
+
+    private static Class columnClass(String className) {
+        try {
+            return className != null ? Class.forName(className) : Object.class;
+        } catch (ClassNotFoundException e) {
+            return Object.class;
+        }
+    }
+
+    private PreparedStatement prepareStatement(Connection conn, String sql, List<Object> values) throws SQLException {
+        final PreparedStatement st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        final PentahoReportDefinition def = getDefinition();
+        if (def == null) {
+            st.setFetchSize(getFetchSize());
+            return bind(st, values);
+        }
+        if (def.getFetchSize() != 0) {
+            st.setFetchSize(def.getFetchSize());
+        } else {
+            st.setFetchSize(def.isStreamingCursor() ? BoundSQLReportDataFactory.streamingFetchSize(conn, getFetchSize()) : getFetchSize());
+        }
+        if (def.getMaxRows() > 0) {
+            st.setMaxRows(def.getMaxRows());
+        }
+        if (def.getQueryTimeout() > 0) {
+            st.setQueryTimeout(def.getQueryTimeout());
+        }
+        return bind(st, values);
+    }
+
+    private static PreparedStatement bind(PreparedStatement st, List<Object> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            st.setObject(i + 1, values.get(i));
+        }
+        return st;
+    }
+
+    private void close(ResultSet rs, Statement st, Connection conn) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (st != null) {
+                st.close();
+            }
+        } catch (SQLException e) {
+            debug(e.getMessage());
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.close();
+                }
+            } catch (SQLException e) {
+                debug(e.getMessage());
+            }
+        }
+    }
+
     @Override
     public String getReportPath() {
         return this.reportPath;
@@ -282,6 +1005,18 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
         this.reportPath = reportPath;
     }
 
+    /**
+     * @return the shared connection provider or <code>null</code> to open a
+     * new connection using the connection driver and url
+     */
+    public ConnectionProvider getConnectionProvider() {
+        return connectionProvider;
+    }
+
+    public void setConnectionProvider(ConnectionProvider connectionProvider) {
+        this.connectionProvider = connectionProvider;
+    }
+
     public String getConnectionDriver() {
         return this.connectionDriver;
     }
@@ -342,6 +1077,145 @@ public abstract class AbstractReportGenerator implements ReportGenerator {
         return this.queryPath;
     }
 
+    public PentahoReportDefinition getDefinition() {
+        return definition;
+    }
+
+    public void setDefinition(PentahoReportDefinition definition) {
+        this.definition = definition;
+    }
+
+    public ReportTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    public void setTemplateCache(ReportTemplateCache templateCache) {
+        this.templateCache = templateCache;
+    }
+
+    /**
+     * Returns the resource manager used to load report definitions. When
+     * none was injected a new one is created and kept for this generator.
+     *
+     * @return the resource manager
+     */
+    public ResourceManager getResourceManager() {
+        if (resourceManager == null) {
+            resourceManager = new ResourceManager();
+            resourceManager.registerDefaults();
+        }
+        return resourceManager;
+    }
+
+    public void setResourceManager(ResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+    }
+
+    public ReportResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ReportResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+
+    public void setQueryCache(QueryResultCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public SqlRegistry getSqlRegistry() {
+        return sqlRegistry;
+    }
+
+    public void setSqlRegistry(SqlRegistry sqlRegistry) {
+        this.sqlRegistry = sqlRegistry;
+    }
+
+    public String getQueryEncoding() {
+        return queryEncoding;
+    }
+
+    public void setQueryEncoding(String queryEncoding) {
+        this.queryEncoding = queryEncoding;
+    }
+
+    /**
+     * @return JDBC fetch size used by the streamed outputs
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return directory for temporary files, <code>null</code> for the
+     * default temporary directory
+     */
+    public File getTempDir() {
+        return tempDir;
+    }
+
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * @return buffer size used when the report is written to a file
+     */
+    public int getFileBufferSize() {
+        return fileBufferSize;
+    }
+
+    public void setFileBufferSize(int fileBufferSize) {
+        this.fileBufferSize = fileBufferSize;
+    }
+
+    /**
+     * @return true if report files are forced to disk before being renamed
+     * to their final name
+     */
+    public boolean isFileSync() {
+        return fileSync;
+    }
+
+    public void setFileSync(boolean fileSync) {
+        this.fileSync = fileSync;
+    }
+
+    public ReportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(ReportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public boolean isLogRuns() {
+        return logRuns;
+    }
+
+    /**
+     * @param logRuns if a summary of each run is logged
+     */
+    public void setLogRuns(boolean logRuns) {
+        this.logRuns = logRuns;
+    }
+
+    /**
+     * @return timings of the report being generated. Outside of
+     * {@link #generateReport} it is a detached run nobody records.
+     */
+    protected ReportRun getRun() {
+        return run != null ? run : new ReportRun(getReportPath(), null);
+    }
+
     public Log getLog() {
         return log;
     }
@@ -0,0 +1,197 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a file through a {@link FileChannel} and publishes it atomically.
+ * <p/>
+ * Data goes to a temporary file in the target directory through a heap
+ * buffer of configurable size, so parallel batches do not hold direct
+ * memory that only the garbage collector releases. {@link #close()} flushes it, optionally
+ * forces it to disk and renames it to the target name, so readers polling the
+ * directory never see a partial file. {@link #abort()} deletes the temporary
+ * file instead.
+ *
+ * @author jpaoletti
+ */
+public class AtomicFileOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private final File file;
+    private final File tmp;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean sync;
+    private long position;
+    private boolean preallocated;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * @param file target file
+     * @param bufferSize write buffer size in bytes
+     * @param sync force the data to disk before renaming
+     */
+    public AtomicFileOutputStream(File file, int bufferSize, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        this.tmp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+        this.raf = new RandomAccessFile(tmp, "rw");
+        this.channel = raf.getChannel();
+        this.buffer = ByteBuffer.allocate(bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE);
+    }
+
+    public AtomicFileOutputStream(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * Sets the length of the temporary file to the expected size before
+     * writing, as a size hint. It does not write any data: on most file
+     * systems the file is sparse and no blocks are reserved, so it does not
+     * guarantee the space. The file is truncated to the written size on
+     * close.
+     */
+    public void preallocate(long size) throws IOException {
+        if (size > position) {
+            raf.setLength(size);
+            preallocated = true;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.remaining()) {
+            flushBuffer();
+            if (len >= buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * Writes the pending data and closes the temporary file without
+     * publishing it, so it holds no file descriptor until {@link #close()}
+     * renames it or {@link #abort()} deletes it. No more data can be written.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            flushBuffer();
+            if (preallocated) {
+                channel.truncate(position);
+            }
+            if (sync) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            closed = true;
+            raf.close();
+            tmp.delete();
+            throw e;
+        }
+        raf.close();
+    }
+
+    /**
+     * Writes the pending data and renames the temporary file to the target
+     * file, replacing it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        finish();
+        closed = true;
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            tmp.delete();
+            throw new IOException(String.format("Unable to rename %s to %s", tmp, file));
+        }
+    }
+
+    /**
+     * Discards the written data, leaving the target file untouched. Does
+     * nothing once closed.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // ignored, the file is deleted anyway
+        }
+        tmp.delete();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return bytes written so far
+     */
+    public long size() {
+        return position + buffer.position();
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            position += channel.write(b, position);
+        }
+    }
+}
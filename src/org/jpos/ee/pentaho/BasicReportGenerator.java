@@ -62,6 +62,29 @@ public class BasicReportGenerator extends AbstractReportGenerator {
      */
     @Override
     public MasterReport getReportDefinition() throws ReportException {
+        final ReportTemplateCache cache = getTemplateCache();
+        final PentahoReportDefinition definition = getDefinition();
+        if (cache == null || definition == null) {
+            return loadReportDefinition();
+        }
+        MasterReport report = cache.get(definition);
+        if (report != null) {
+            debug(String.format("Report definition: %s (cached)", getReportPath()));
+            return report;
+        }
+        final long lastModified = ReportTemplateCache.lastModified(definition);
+        report = loadReportDefinition();
+        cache.put(definition, report, lastModified);
+        return report;
+    }
+
+    /**
+     * Loads and parses the report definition file
+     *
+     * @return the parsed report definition
+     * @throws ReportException
+     */
+    protected MasterReport loadReportDefinition() throws ReportException {
         debug(String.format("Report definition: %s", getReportPath()));
         URL reportDefinitionURL;
         try {
@@ -69,8 +92,7 @@ public class BasicReportGenerator extends AbstractReportGenerator {
         } catch (MalformedURLException e1) {
             throw new ReportNotFoundException(e1);
         }
-        final ResourceManager resourceManager = new ResourceManager();
-        resourceManager.registerDefaults();
+        final ResourceManager resourceManager = getResourceManager();
         Resource directly;
         try {
             directly = resourceManager.createDirectly(reportDefinitionURL, MasterReport.class);
@@ -112,13 +134,23 @@ public class BasicReportGenerator extends AbstractReportGenerator {
         return res;
     }
 
+    /**
+     * Returns the query with its <code>@NAME@</code> placeholders bound to the
+     * matching SQL_NAME parameters. Placeholders declared as literals in the
+     * report definition are replaced by the parameter value instead.
+     */
     @Override
     protected String getQuery() throws QueryNotFoundException {
-        String sql = super.getQuery();
-        Map<String, Object> sqlParameters = getSQLParameters();
-        String res = sql;
-        for (Entry<String, Object> entry : sqlParameters.entrySet()) {
-            res = res.replaceAll("@" + entry.getKey().substring(SQL_PREFIX.length()) + "@", entry.getValue().toString());
+        final SqlTemplate template = getQueryTemplate();
+        final PentahoReportDefinition definition = getDefinition();
+        return template.toQuery(definition != null ? definition.getLiteralParameters() : null, getQueryParameters());
+    }
+
+    @Override
+    protected Map<String, Object> getQueryParameters() {
+        Map<String, Object> res = new HashMap<String, Object>();
+        for (Entry<String, Object> entry : getSQLParameters().entrySet()) {
+            res.put(SQL_PREFIX + entry.getKey().substring(SQL_PREFIX.length()), entry.getValue());
         }
         return res;
     }
@@ -0,0 +1,141 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.jpos.util.Loggeable;
+
+/**
+ * Outcome of a batch of reports, with the status and timing of each item.
+ *
+ * @author jpaoletti
+ */
+public class BatchResult implements Loggeable {
+
+    private final String report;
+    private final OutputType outputType;
+    private final List<Item> items;
+    private long elapsed;
+
+    /**
+     * @param size expected number of items, more can be added
+     */
+    public BatchResult(String report, OutputType outputType, int size) {
+        this.report = report;
+        this.outputType = outputType;
+        this.items = new ArrayList<Item>(Collections.<Item>nCopies(size, null));
+    }
+
+    synchronized void set(Item item) {
+        while (items.size() <= item.getIndex()) {
+            items.add(null);
+        }
+        items.set(item.getIndex(), item);
+    }
+
+    public synchronized List<Item> getItems() {
+        return new ArrayList<Item>(items);
+    }
+
+    public synchronized int getSucceeded() {
+        int res = 0;
+        for (Item item : items) {
+            if (item != null && item.isSuccess()) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    public synchronized int getFailed() {
+        return items.size() - getSucceeded();
+    }
+
+    /**
+     * @return wall time of the whole batch in milliseconds
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    void setElapsed(long elapsed) {
+        this.elapsed = elapsed;
+    }
+
+    public String getReport() {
+        return report;
+    }
+
+    public OutputType getOutputType() {
+        return outputType;
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(String.format("%s<batch report=\"%s\" output=\"%s\" items=\"%d\" succeeded=\"%d\" failed=\"%d\" elapsed=\"%dms\">",
+                indent, report, outputType, items.size(), getSucceeded(), getFailed(), elapsed));
+        for (Item item : getItems()) {
+            if (item == null) {
+                continue;
+            }
+            p.println(String.format("%s  <item index=\"%d\" success=\"%s\" elapsed=\"%dms\"%s/>",
+                    indent, item.getIndex(), item.isSuccess(), item.getElapsed(),
+                    item.getError() != null ? " error=\"" + item.getError() + "\"" : ""));
+        }
+        p.println(indent + "</batch>");
+    }
+
+    public static class Item {
+
+        private final int index;
+        private final Map<String, Object> parameters;
+        private final long elapsed;
+        private final Throwable error;
+
+        Item(int index, Map<String, Object> parameters, long elapsed, Throwable error) {
+            this.index = index;
+            this.parameters = parameters;
+            this.elapsed = elapsed;
+            this.error = error;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Map<String, Object> getParameters() {
+            return parameters;
+        }
+
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.table.TableModel;
+import org.pentaho.reporting.engine.classic.core.DataFactory;
+import org.pentaho.reporting.engine.classic.core.DataRow;
+import org.pentaho.reporting.engine.classic.core.ReportDataFactoryException;
+import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.ConnectionProvider;
+import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.SQLReportDataFactory;
+import org.pentaho.reporting.engine.classic.core.util.CloseableTableModel;
+
+/**
+ * SQL data factory that adds a fixed set of values to the parameters of
+ * every query, so <code>${name}</code> references in the SQL are bound on the
+ * prepared statement even if they are not report parameters. Query times and
+ * row counts are recorded in the current {@link ReportRun}, if any. The
+ * fetch size, row limit, timeout and cursor type of the report definition are
+ * applied to the statement. Results may be shared through a
+ * {@link QueryResultCache}.
+ *
+ * @author jpaoletti
+ */
+public class BoundSQLReportDataFactory extends SQLReportDataFactory {
+
+    private static final long serialVersionUID = 1L;
+    private static final Pattern PARAMETER = Pattern.compile("\\$\\{([^}]+)\\}");
+    private static final String DATA_SOURCE = "@datasource";
+    private final Map<String, Object> boundParameters;
+    private transient ReportRun reportRun;
+    private int fetchSize;
+    private int maxRows;
+    private int queryTimeout;
+    private boolean streamingCursor;
+    private int streamingFetchSize = 1000;
+    private transient QueryResultCache queryCache;
+    private int queryCacheTtl;
+    private String dataSource;
+
+    public BoundSQLReportDataFactory(ConnectionProvider connectionProvider, Map<String, Object> boundParameters) {
+        super(connectionProvider);
+        this.boundParameters = boundParameters;
+    }
+
+    @Override
+    public synchronized TableModel queryData(String query, DataRow parameters) throws ReportDataFactoryException {
+        final long start = System.currentTimeMillis();
+        Map<String, Object> values = boundParameters;
+        if (maxRows > 0 || queryTimeout > 0) {
+            values = new HashMap<String, Object>(boundParameters);
+            if (maxRows > 0) {
+                values.put(DataFactory.QUERY_LIMIT, Integer.valueOf(maxRows));
+            }
+            if (queryTimeout > 0) {
+                values.put(DataFactory.QUERY_TIMEOUT, Integer.valueOf(queryTimeout));
+            }
+        }
+        final BoundDataRow dataRow = new BoundDataRow(parameters, values);
+        String key = null;
+        TableModel res = null;
+        if (queryCache != null && queryCacheTtl > 0) {
+            key = cacheKey(query, dataRow);
+            res = queryCache.get(key);
+        }
+        if (res == null) {
+            res = super.queryData(query, dataRow);
+            if (key != null) {
+                final TableModel result = res;
+                res = queryCache.put(key, result, queryCacheTtl);
+                if (res != result && result instanceof CloseableTableModel) {
+                    ((CloseableTableModel) result).close();
+                }
+            }
+        }
+        if (reportRun != null) {
+            reportRun.add(ReportRun.QUERY, System.currentTimeMillis() - start);
+            reportRun.addRows(res.getRowCount());
+        }
+        return res;
+    }
+
+    /**
+     * Builds the query cache key from the SQL and the values of the
+     * parameters it references
+     */
+    private String cacheKey(String query, DataRow dataRow) {
+        final String sql = getQuery(query);
+        final Map<String, Object> referenced = new HashMap<String, Object>();
+        final Matcher m = PARAMETER.matcher(sql != null ? sql : query);
+        while (m.find()) {
+            final String name = m.group(1).split(",")[0].trim();
+            referenced.put(name, dataRow.get(name));
+        }
+        referenced.put(DataFactory.QUERY_LIMIT, dataRow.get(DataFactory.QUERY_LIMIT));
+        referenced.put(DATA_SOURCE, dataSource);
+        return QueryResultCache.key(sql != null ? sql : query, referenced);
+    }
+
+    /**
+     * Returns the connection of the factory, wrapped to apply the fetch size
+     * and the streaming cursor to the statements it creates
+     */
+    @Override
+    protected synchronized Connection getConnection(DataRow dataRow) throws SQLException {
+        final Connection connection = super.getConnection(dataRow);
+        if (fetchSize == 0 && !streamingCursor) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new StatementOptionsHandler(connection, streamingCursor,
+                fetchSize != 0 ? fetchSize : streamingFetchSize(connection, streamingFetchSize)));
+    }
+
+    /**
+     * Fetch size of a streaming cursor: Integer.MIN_VALUE on MySQL
+     * Connector/J, which only streams the rows with it, and the given size on
+     * other drivers, which reject negative fetch sizes
+     */
+    public static int streamingFetchSize(Connection connection, int fetchSize) throws SQLException {
+        final String driver = connection.getMetaData().getDriverName();
+        return driver != null && driver.toLowerCase().contains("mysql") ? Integer.MIN_VALUE : fetchSize;
+    }
+
+    /**
+     * @param reportRun run where query time and row counts are recorded
+     */
+    public void setReportRun(ReportRun reportRun) {
+        this.reportRun = reportRun;
+    }
+
+    public Map<String, Object> getBoundParameters() {
+        return boundParameters;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @param fetchSize JDBC fetch size of the query, 0 for the driver default
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * @param maxRows maximum number of rows read, 0 for no limit
+     */
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * @param queryTimeout query timeout in seconds, 0 for no timeout
+     */
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public boolean isStreamingCursor() {
+        return streamingCursor;
+    }
+
+    /**
+     * Runs the query with a forward only, read only cursor, so the driver
+     * does not need to keep the whole result. Without a fetch size, the
+     * fetch size is set to Integer.MIN_VALUE on MySQL Connector/J, which
+     * makes it stream the rows, and to the streaming fetch size on other
+     * drivers.
+     */
+    public void setStreamingCursor(boolean streamingCursor) {
+        this.streamingCursor = streamingCursor;
+    }
+
+    /**
+     * @param streamingFetchSize fetch size of a streaming cursor without
+     * fetch size, on drivers other than MySQL Connector/J
+     */
+    public void setStreamingFetchSize(int streamingFetchSize) {
+        this.streamingFetchSize = streamingFetchSize;
+    }
+
+    /**
+     * @param queryCache cache of the query results, may be <code>null</code>
+     * @param ttl seconds the results are kept, 0 to not cache them
+     */
+    public void setQueryCache(QueryResultCache queryCache, int ttl) {
+        this.queryCache = queryCache;
+        this.queryCacheTtl = ttl;
+    }
+
+    /**
+     * @param dataSource name of the datasource the query runs on, part of the
+     * query cache key
+     */
+    public void setDataSource(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private static class StatementOptionsHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final boolean forwardOnly;
+        private final int fetchSize;
+
+        StatementOptionsHandler(Connection connection, boolean forwardOnly, int fetchSize) {
+            this.connection = connection;
+            this.forwardOnly = forwardOnly;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            final boolean statement = "createStatement".equals(name) || "prepareStatement".equals(name) || "prepareCall".equals(name);
+            if (statement && forwardOnly && args != null) {
+                // (sql, type, concurrency) or (type, concurrency)
+                final Class[] types = method.getParameterTypes();
+                final int i = types[0] == String.class ? 1 : 0;
+                if (args.length >= i + 2 && types[i] == int.class && types[i + 1] == int.class) {
+                    args = args.clone();
+                    args[i] = Integer.valueOf(ResultSet.TYPE_FORWARD_ONLY);
+                    args[i + 1] = Integer.valueOf(ResultSet.CONCUR_READ_ONLY);
+                }
+            }
+            final Object res;
+            try {
+                res = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (statement && res instanceof Statement) {
+                ((Statement) res).setFetchSize(fetchSize);
+            }
+            return res;
+        }
+    }
+
+    private static class BoundDataRow implements DataRow {
+
+        private final DataRow parent;
+        private final Map<String, Object> values;
+
+        BoundDataRow(DataRow parent, Map<String, Object> values) {
+            this.parent = parent;
+            this.values = values;
+        }
+
+        @Override
+        public Object get(String col) {
+            if (values.containsKey(col)) {
+                return values.get(col);
+            }
+            return parent != null ? parent.get(col) : null;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            final Set<String> names = new LinkedHashSet<String>(values.keySet());
+            if (parent != null) {
+                for (String name : parent.getColumnNames()) {
+                    names.add(name);
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        @Override
+        public boolean isChanged(String col) {
+            return parent != null && !values.containsKey(col) && parent.isChanged(col);
+        }
+    }
+}
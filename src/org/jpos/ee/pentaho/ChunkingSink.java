@@ -0,0 +1,192 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits each report written to it into parts of at most a given size, each
+ * one opened on the decorated sink with a <code>part</code> parameter
+ * (<code>001</code>, <code>002</code>...), e.g. for a
+ * {@link FilePatternSink} with pattern <code>out/report.pdf.{part}</code>.
+ * Parts are opened as the report is written, but none is published until
+ * the report is closed: then all of them are committed, or all discarded if
+ * the report failed. Full {@link AtomicFileOutputStream} parts are finished
+ * meanwhile, so they do not keep their files open. Parts numbered after the
+ * last one, left by a previous run with more parts, are deleted from a
+ * {@link FilePatternSink}.
+ *
+ * @author jpaoletti
+ */
+public class ChunkingSink implements ReportSink {
+
+    public static final String PART = "part";
+    private final ReportSink parts;
+    private final long chunkSize;
+
+    /**
+     * @param parts sink where each part is written
+     * @param chunkSize maximum part size in bytes
+     */
+    public ChunkingSink(ReportSink parts, long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.parts = parts;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public OutputStream open(int index, Map<String, Object> parameters) throws IOException {
+        return new ChunkedOutputStream(index, parameters);
+    }
+
+    @Override
+    public void close(int index, OutputStream out, boolean success) throws IOException {
+        ((ChunkedOutputStream) out).close(success);
+    }
+
+    private class ChunkedOutputStream extends OutputStream {
+
+        private final int index;
+        private final Map<String, Object> parameters;
+        private final List<OutputStream> pending = new ArrayList<OutputStream>();
+        private OutputStream part;
+        private int count;
+        private long written;
+        private boolean closed;
+
+        ChunkedOutputStream(int index, Map<String, Object> parameters) {
+            this.index = index;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            next().write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final OutputStream out = next();
+                final int n = (int) Math.min(len, chunkSize - written);
+                out.write(b, off, n);
+                written += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (part != null) {
+                part.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            close(true);
+        }
+
+        void close(boolean success) throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (part == null && success) {
+                open();
+            }
+            if (part != null) {
+                pending.add(part);
+                part = null;
+            }
+            IOException error = null;
+            for (OutputStream out : pending) {
+                try {
+                    // once a part fails the rest are discarded
+                    parts.close(index, out, success && error == null);
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            pending.clear();
+            if (error != null) {
+                throw error;
+            }
+            if (success) {
+                deleteStaleParts();
+            }
+        }
+
+        /**
+         * @return the current part, opening a new one once it is full
+         */
+        private OutputStream next() throws IOException {
+            if (part != null && written >= chunkSize) {
+                if (part instanceof AtomicFileOutputStream) {
+                    ((AtomicFileOutputStream) part).finish();
+                }
+                pending.add(part);
+                part = null;
+            }
+            if (part == null) {
+                open();
+            }
+            return part;
+        }
+
+        private void open() throws IOException {
+            part = parts.open(index, partParameters(++count));
+            written = 0;
+        }
+
+        private Map<String, Object> partParameters(int n) {
+            final Map<String, Object> p = new HashMap<String, Object>();
+            if (parameters != null) {
+                p.putAll(parameters);
+            }
+            p.put(PART, String.format("%03d", n));
+            return p;
+        }
+
+        private void deleteStaleParts() throws IOException {
+            if (!(parts instanceof FilePatternSink)) {
+                return;
+            }
+            final FilePatternSink files = (FilePatternSink) parts;
+            final File last = files.getFile(index, partParameters(count));
+            for (int n = count + 1;; n++) {
+                final File stale = files.getFile(index, partParameters(n));
+                if (stale.equals(last) || !stale.delete()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Five field cron expression: minute, hour, day of month, month and day of
+ * week. Each field accepts <code>*</code>, values, ranges, lists and steps
+ * (<code>0,30</code>, <code>1-5</code>, <code>*&#47;15</code>); day of week
+ * goes from 0 (sunday) to 7 (sunday). As in cron, when both day fields are
+ * restricted a day matching either of them fires. <code>@hourly</code>,
+ * <code>@daily</code>, <code>@weekly</code> and <code>@monthly</code> are
+ * also accepted.
+ *
+ * @author jpaoletti
+ */
+public class CronExpression {
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    /**
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public CronExpression(String expression) {
+        this.expression = expression;
+        final String[] fields = alias(expression.trim()).split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException(String.format("Invalid cron expression '%s', five fields expected", expression));
+        }
+        minutes = parse(fields[0], 0, 59);
+        hours = parse(fields[1], 0, 23);
+        daysOfMonth = parse(fields[2], 1, 31);
+        months = parse(fields[3], 1, 12);
+        daysOfWeek = parse(fields[4], 0, 7);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        anyDayOfMonth = fields[2].startsWith("*");
+        anyDayOfWeek = fields[4].startsWith("*");
+    }
+
+    /**
+     * @return the first time after the given one matching the expression,
+     * <code>null</code> if there is none in the next years (e.g. february 30)
+     */
+    public Date next(Date after) {
+        final Calendar c = Calendar.getInstance();
+        c.setTime(after);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        c.add(Calendar.MINUTE, 1);
+        final int limit = c.get(Calendar.YEAR) + 5;
+        while (c.get(Calendar.YEAR) <= limit) {
+            if (!months.get(c.get(Calendar.MONTH) + 1)) {
+                c.set(Calendar.DAY_OF_MONTH, 1);
+                c.set(Calendar.HOUR_OF_DAY, 0);
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.MONTH, 1);
+            } else if (!matchesDay(c)) {
+                c.set(Calendar.HOUR_OF_DAY, 0);
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.DAY_OF_MONTH, 1);
+            } else if (!hours.get(c.get(Calendar.HOUR_OF_DAY))) {
+                c.set(Calendar.MINUTE, 0);
+                c.add(Calendar.HOUR_OF_DAY, 1);
+            } else if (!minutes.get(c.get(Calendar.MINUTE))) {
+                c.add(Calendar.MINUTE, 1);
+            } else {
+                return c.getTime();
+            }
+        }
+        return null;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private boolean matchesDay(Calendar c) {
+        final boolean dom = daysOfMonth.get(c.get(Calendar.DAY_OF_MONTH));
+        final boolean dow = daysOfWeek.get(c.get(Calendar.DAY_OF_WEEK) - 1);
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dom && dow;
+        }
+        return dom || dow;
+    }
+
+    private static String alias(String expression) {
+        if ("@hourly".equals(expression)) {
+            return "0 * * * *";
+        } else if ("@daily".equals(expression) || "@midnight".equals(expression)) {
+            return "0 0 * * *";
+        } else if ("@weekly".equals(expression)) {
+            return "0 0 * * 0";
+        } else if ("@monthly".equals(expression)) {
+            return "0 0 1 * *";
+        }
+        return expression;
+    }
+
+    private BitSet parse(String field, int min, int max) {
+        final BitSet res = new BitSet(max + 1);
+        for (String part : field.split(",")) {
+            int step = 1;
+            final int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = number(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+            }
+            int from;
+            int to;
+            if ("*".equals(part)) {
+                from = min;
+                to = max;
+            } else {
+                final int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    from = number(part.substring(0, dash), min, max);
+                    to = number(part.substring(dash + 1), min, max);
+                } else {
+                    from = number(part, min, max);
+                    to = slash >= 0 ? max : from;
+                }
+            }
+            if (from > to) {
+                throw new IllegalArgumentException(String.format("Invalid range '%s' in cron expression '%s'", part, expression));
+            }
+            for (int i = from; i <= to; i += step) {
+                res.set(i);
+            }
+        }
+        return res;
+    }
+
+    private int number(String s, int min, int max) {
+        try {
+            final int n = Integer.parseInt(s);
+            if (n >= min && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException(String.format("Invalid value '%s' in cron expression '%s', expected %d-%d", s, expression, min, max));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes each report of a batch to a file whose name comes from a pattern.
+ * <code>{index}</code> is replaced by the item position and
+ * <code>{NAME}</code> by the value of the parameter NAME, e.g.
+ * <code>out/statement-{SQL_MERCHANT}.pdf</code>. Each file is written to a
+ * temporary name and renamed once complete; files of failed items are
+ * discarded.
+ * <p/>
+ * Values may come from the database, so path separators and control
+ * characters in them are replaced by <code>_</code>, and a missing value or
+ * a value of <code>.</code> or <code>..</code> fails the item. A sink names
+ * the files of one batch: an item resolving to the name of a previous item
+ * fails instead of overwriting it.
+ *
+ * @author jpaoletti
+ */
+public class FilePatternSink implements ReportSink {
+
+    private static final Pattern VARIABLE = Pattern.compile("\\{(\\w+)\\}");
+    private static final Pattern UNSAFE = Pattern.compile("[/\\\\:\\p{Cntrl}]");
+    private final String pattern;
+    private final int bufferSize;
+    private final boolean sync;
+    private final Set<File> opened = new HashSet<File>();
+
+    public FilePatternSink(String pattern) {
+        this(pattern, AtomicFileOutputStream.DEFAULT_BUFFER_SIZE, false);
+    }
+
+    /**
+     * @param pattern file name pattern
+     * @param bufferSize write buffer size of each file
+     * @param sync force each file to disk before renaming it
+     */
+    public FilePatternSink(String pattern, int bufferSize, boolean sync) {
+        this.pattern = pattern;
+        this.bufferSize = bufferSize;
+        this.sync = sync;
+    }
+
+    /**
+     * @return the file of an item
+     * @throws IOException if a variable has no value or its value is a
+     * relative path component
+     */
+    public File getFile(int index, Map<String, Object> parameters) throws IOException {
+        final Matcher m = VARIABLE.matcher(pattern);
+        final StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            final String name = m.group(1);
+            final Object value = "index".equals(name) ? Integer.valueOf(index) : parameters != null ? parameters.get(name) : null;
+            if (value == null) {
+                throw new IOException(String.format("No value for {%s} in %s", name, pattern));
+            }
+            final String s = UNSAFE.matcher(String.valueOf(value)).replaceAll("_");
+            if (s.length() == 0 || ".".equals(s) || "..".equals(s)) {
+                throw new IOException(String.format("Invalid value '%s' for {%s} in %s", s, name, pattern));
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(s));
+        }
+        m.appendTail(sb);
+        return new File(sb.toString());
+    }
+
+    @Override
+    public OutputStream open(int index, Map<String, Object> parameters) throws IOException {
+        final File file = getFile(index, parameters);
+        synchronized (opened) {
+            if (!opened.add(file.getAbsoluteFile())) {
+                throw new IOException(String.format("Item %d resolves to %s, already written by another item", index, file));
+            }
+        }
+        return new AtomicFileOutputStream(file, bufferSize, sync);
+    }
+
+    @Override
+    public void close(int index, OutputStream out, boolean success) throws IOException {
+        if (success) {
+            out.close();
+        } else {
+            ((AtomicFileOutputStream) out).abort();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket histogram of elapsed times in milliseconds. Percentiles are
+ * approximated by the upper bound of the bucket they fall in.
+ *
+ * @author jpaoletti
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, Long.MAX_VALUE
+    };
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        int i = 0;
+        while (millis > BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        total.addAndGet(millis);
+        long m = max.get();
+        while (millis > m && !max.compareAndSet(m, millis)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        final long c = count.get();
+        return c > 0 ? total.get() / c : 0L;
+    }
+
+    /**
+     * @param p percentile, between 0 and 100
+     */
+    public long getPercentile(double p) {
+        final long c = count.get();
+        if (c == 0) {
+            return 0L;
+        }
+        final long rank = (long) Math.ceil(c * p / 100d);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%d p50=%d p95=%d p99=%d max=%d",
+                getCount(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.table.TableModel;
+import org.pentaho.reporting.engine.classic.core.DataFactory;
+import org.pentaho.reporting.engine.classic.core.DataRow;
+import org.pentaho.reporting.engine.classic.core.ReportDataFactoryException;
+import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.ConnectionProvider;
+
+/**
+ * Data factory that runs the report query with plain JDBC and keeps its
+ * result in an {@link OffHeapTableModel}, so reports over large results do
+ * not fill the heap with boxed cells. The query is already translated to
+ * JDBC, with its values bound in order.
+ *
+ * @author jpaoletti
+ */
+public class OffHeapSQLDataFactory implements DataFactory, Cloneable {
+
+    private static final long serialVersionUID = 1L;
+    private final transient ConnectionProvider connectionProvider;
+    private final String name;
+    private final String sql;
+    private final List<Object> values;
+    private final boolean mapped;
+    private int fetchSize;
+    private boolean streamingCursor;
+    private int maxRows;
+    private int queryTimeout;
+    private File tempDir;
+    private transient ReportRun reportRun;
+    private transient PreparedStatement running;
+    private transient List<OffHeapTableModel> tables = new ArrayList<OffHeapTableModel>();
+
+    /**
+     * @param connectionProvider connection of the query
+     * @param name query name
+     * @param sql JDBC query
+     * @param values values of the query markers
+     * @param mapped keep the data in a memory mapped file instead of direct
+     * buffers
+     */
+    public OffHeapSQLDataFactory(ConnectionProvider connectionProvider, String name, String sql, List<Object> values, boolean mapped) {
+        this.connectionProvider = connectionProvider;
+        this.name = name;
+        this.sql = sql;
+        this.values = values;
+        this.mapped = mapped;
+    }
+
+    @Override
+    public TableModel queryData(String query, DataRow parameters) throws ReportDataFactoryException {
+        if (!isQueryExecutable(query, parameters)) {
+            throw new ReportDataFactoryException("Unknown query " + query);
+        }
+        final long start = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = connectionProvider.createConnection(null, null);
+            st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (streamingCursor) {
+                st.setFetchSize(BoundSQLReportDataFactory.streamingFetchSize(conn, fetchSize));
+            } else if (fetchSize != 0) {
+                st.setFetchSize(fetchSize);
+            }
+            if (maxRows > 0) {
+                st.setMaxRows(maxRows);
+            }
+            if (queryTimeout > 0) {
+                st.setQueryTimeout(queryTimeout);
+            }
+            for (int i = 0; i < values.size(); i++) {
+                st.setObject(i + 1, values.get(i));
+            }
+            synchronized (this) {
+                running = st;
+            }
+            rs = st.executeQuery();
+            final OffHeapTableModel res = new OffHeapTableModel(rs, mapped, tempDir);
+            synchronized (this) {
+                tables.add(res);
+            }
+            if (reportRun != null) {
+                reportRun.add(ReportRun.QUERY, System.currentTimeMillis() - start);
+                reportRun.addRows(res.getRowCount());
+            }
+            return res;
+        } catch (SQLException e) {
+            throw new ReportDataFactoryException("Failed at query: " + sql, e);
+        } catch (IOException e) {
+            throw new ReportDataFactoryException("Unable to store the result of: " + sql, e);
+        } finally {
+            synchronized (this) {
+                running = null;
+            }
+            close(rs, st, conn);
+        }
+    }
+
+    @Override
+    public boolean isQueryExecutable(String query, DataRow parameters) {
+        return name.equals(query);
+    }
+
+    @Override
+    public String[] getQueryNames() {
+        return new String[]{name};
+    }
+
+    @Override
+    public DataFactory derive() throws ReportDataFactoryException {
+        try {
+            final OffHeapSQLDataFactory res = (OffHeapSQLDataFactory) super.clone();
+            res.tables = new ArrayList<OffHeapTableModel>();
+            res.running = null;
+            return res;
+        } catch (CloneNotSupportedException e) {
+            throw new ReportDataFactoryException("Unable to derive", e);
+        }
+    }
+
+    @Override
+    public void open() throws ReportDataFactoryException {
+    }
+
+    /**
+     * Releases the results of the queries
+     */
+    @Override
+    public synchronized void close() {
+        for (OffHeapTableModel table : tables) {
+            table.close();
+        }
+        tables.clear();
+    }
+
+    @Override
+    public void cancelRunningQuery() {
+        final PreparedStatement st;
+        synchronized (this) {
+            st = running;
+        }
+        if (st != null) {
+            try {
+                st.cancel();
+            } catch (SQLException e) {
+                // the query may have ended
+            }
+        }
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Sets the fetch size to Integer.MIN_VALUE instead on MySQL Connector/J,
+     * which makes it stream the rows
+     */
+    public void setStreamingCursor(boolean streamingCursor) {
+        this.streamingCursor = streamingCursor;
+    }
+
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @param tempDir directory of the mapped files, <code>null</code> for the
+     * default
+     */
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * @param reportRun run where query time and row counts are recorded
+     */
+    public void setReportRun(ReportRun reportRun) {
+        this.reportRun = reportRun;
+    }
+
+    private static void close(ResultSet rs, PreparedStatement st, Connection conn) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+            if (st != null) {
+                st.close();
+            }
+        } catch (SQLException e) {
+            // nothing to do
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,837 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableModel;
+import org.pentaho.reporting.engine.classic.core.util.CloseableTableModel;
+
+/**
+ * Read only table model whose values are kept out of the java heap.
+ * <p/>
+ * Each column is stored in chunks of direct buffers, or of a memory mapped
+ * temporary file, using a primitive encoding for its JDBC type: integers,
+ * longs, doubles, booleans, dates as milliseconds and decimals of up to 18
+ * digits as unscaled longs. Chunks start at FIRST_ROWS rows and double up to
+ * CHUNK_ROWS, so small results take a few KB. Strings are dictionary encoded:
+ * each cell holds the code of a distinct value, whose UTF-8 bytes are also
+ * kept off the heap. Once a column has MAX_DICTIONARY distinct values, or
+ * MAX_DICTIONARY_CHARS characters of them, new values are stored once per
+ * cell instead. Only the null bitmaps, the dictionaries and values of other
+ * types stay on the heap; cells are boxed when they are read.
+ * <p/>
+ * The buffers are released by {@link #close()}, after which the model can
+ * not be read.
+ *
+ * @author jpaoletti
+ */
+public class OffHeapTableModel extends AbstractTableModel implements CloseableTableModel {
+
+    private static final long serialVersionUID = 1L;
+    private static final int FIRST_BITS = 8;
+    private static final int FIRST_ROWS = 1 << FIRST_BITS;
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+    private static final int FIRST_ARENA_SIZE = 4096;
+    private static final int ARENA_SIZE = 1024 * 1024;
+    private static final int HEAP_DICTIONARY = 1024;
+    private static final int MAX_DICTIONARY = 65536;
+    private static final long MAX_DICTIONARY_CHARS = 4L * 1024 * 1024;
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private final transient Allocator allocator;
+    private final String[] names;
+    private final Class[] types;
+    private final Column[] columns;
+    private int rows;
+    private volatile boolean closed;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> c = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        } catch (Exception e) {
+            // before java 9, buffers are freed through their cleaner
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Reads all the rows of the result set
+     *
+     * @param rs the result set, not closed
+     * @param mapped store the data in a memory mapped temporary file
+     * instead of direct buffers
+     * @param tempDir directory of the mapped file, <code>null</code> for the
+     * default
+     */
+    public OffHeapTableModel(ResultSet rs, boolean mapped, File tempDir) throws SQLException, IOException {
+        allocator = mapped ? new MappedAllocator(tempDir) : new Allocator();
+        final ResultSetMetaData md = rs.getMetaData();
+        names = new String[md.getColumnCount()];
+        types = new Class[names.length];
+        columns = new Column[names.length];
+        try {
+            for (int i = 0; i < names.length; i++) {
+                names[i] = md.getColumnLabel(i + 1);
+                columns[i] = createColumn(md, i + 1);
+                types[i] = columns[i].type;
+            }
+            while (rs.next()) {
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i].read(rs, i + 1, rows);
+                }
+                rows++;
+            }
+            for (Column column : columns) {
+                column.done();
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies all the rows of a table model. Columns of integers, longs,
+     * doubles, booleans, SQL dates, decimals and strings are stored off the
+     * heap, the others are kept as they are.
+     *
+     * @param model the table to copy
+     * @param mapped store the data in a memory mapped temporary file
+     * instead of direct buffers
+     * @param tempDir directory of the mapped file, <code>null</code> for the
+     * default
+     */
+    public OffHeapTableModel(TableModel model, boolean mapped, File tempDir) throws IOException {
+        allocator = mapped ? new MappedAllocator(tempDir) : new Allocator();
+        names = new String[model.getColumnCount()];
+        types = new Class[names.length];
+        columns = new Column[names.length];
+        final int count = model.getRowCount();
+        try {
+            for (int i = 0; i < names.length; i++) {
+                names[i] = model.getColumnName(i);
+                columns[i] = createColumn(model, i);
+                types[i] = columns[i].type;
+            }
+            for (int r = 0; r < count; r++) {
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i].read(model.getValueAt(r, i), r);
+                }
+            }
+            rows = count;
+            for (Column column : columns) {
+                column.done();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return types[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return columns[column].get(row);
+    }
+
+    /**
+     * @return bytes allocated off the heap
+     */
+    public long getStoreSize() {
+        return allocator.getSize();
+    }
+
+    /**
+     * Frees the direct buffers, or unmaps and deletes the mapped file. It
+     * must not be called while the model is being read.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        allocator.close();
+    }
+
+    /**
+     * Releases the memory of a direct or mapped buffer now instead of when it
+     * is garbage collected. The buffer must not be used afterwards.
+     */
+    static void free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                final Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object c = cleaner.invoke(buffer);
+                if (c != null) {
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+            }
+        } catch (Exception e) {
+            // not available, it is released by the garbage collector
+        }
+    }
+
+    /**
+     * @return index of the chunk of a row
+     */
+    static int chunkIndex(int row) {
+        if (row < FIRST_ROWS) {
+            return 0;
+        } else if (row < CHUNK_ROWS) {
+            return 32 - Integer.numberOfLeadingZeros(row) - FIRST_BITS;
+        }
+        return CHUNK_BITS - FIRST_BITS + (row >>> CHUNK_BITS);
+    }
+
+    /**
+     * @return position of a row inside its chunk
+     */
+    static int chunkOffset(int row) {
+        if (row < FIRST_ROWS) {
+            return row;
+        } else if (row < CHUNK_ROWS) {
+            return row - Integer.highestOneBit(row);
+        }
+        return row & (CHUNK_ROWS - 1);
+    }
+
+    /**
+     * @return rows of a chunk: two of FIRST_ROWS, then doubling up to
+     * CHUNK_ROWS
+     */
+    static int chunkRows(int index) {
+        if (index == 0) {
+            return FIRST_ROWS;
+        }
+        return 1 << Math.min(FIRST_BITS + index - 1, CHUNK_BITS);
+    }
+
+    private Column createColumn(ResultSetMetaData md, int index) throws SQLException {
+        switch (md.getColumnType(index)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return new IntColumn();
+            case Types.BIGINT:
+                return new LongColumn();
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new DoubleColumn();
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new BooleanColumn();
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                final int scale = md.getScale(index);
+                if (md.getPrecision(index) <= 18 && scale >= 0 && scale <= 18) {
+                    return new DecimalColumn(scale);
+                }
+                return new ObjectColumn(BigDecimal.class);
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                return new DateColumn(md.getColumnType(index));
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return new StringColumn();
+            default:
+                return new ObjectColumn(Object.class);
+        }
+    }
+
+    private Column createColumn(TableModel model, int column) {
+        final Class type = model.getColumnClass(column);
+        if (type == Integer.class) {
+            return new IntColumn();
+        } else if (type == Long.class) {
+            return new LongColumn();
+        } else if (type == Double.class) {
+            return new DoubleColumn();
+        } else if (type == Boolean.class) {
+            return new BooleanColumn();
+        } else if (type == String.class) {
+            return new StringColumn();
+        } else if (type == java.sql.Date.class) {
+            return new DateColumn(Types.DATE);
+        } else if (type == java.sql.Time.class) {
+            return new DateColumn(Types.TIME);
+        } else if (type == java.sql.Timestamp.class) {
+            return new DateColumn(Types.TIMESTAMP);
+        } else if (type == BigDecimal.class) {
+            int scale = 0;
+            for (int r = 0; r < model.getRowCount(); r++) {
+                final Object value = model.getValueAt(r, column);
+                if (value instanceof BigDecimal) {
+                    scale = Math.max(scale, ((BigDecimal) value).scale());
+                }
+            }
+            return scale <= 18 ? new DecimalColumn(scale) : new ObjectColumn(BigDecimal.class);
+        }
+        return new ObjectColumn(type);
+    }
+
+    /**
+     * Allocates the chunks of the columns and frees them on close
+     */
+    private static class Allocator {
+
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private long size;
+
+        synchronized ByteBuffer allocate(int chunk) throws IOException {
+            return add(ByteBuffer.allocateDirect(chunk));
+        }
+
+        final ByteBuffer add(ByteBuffer buffer) {
+            buffers.add(buffer);
+            size += buffer.capacity();
+            return buffer;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized void close() {
+            for (ByteBuffer buffer : buffers) {
+                free(buffer);
+            }
+            buffers.clear();
+        }
+    }
+
+    private static class MappedAllocator extends Allocator {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long length;
+
+        MappedAllocator(File dir) throws IOException {
+            file = File.createTempFile("table", ".cols", dir);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        @Override
+        synchronized ByteBuffer allocate(int chunk) throws IOException {
+            final ByteBuffer res = channel.map(FileChannel.MapMode.READ_WRITE, length, chunk);
+            length += chunk;
+            return add(res);
+        }
+
+        @Override
+        synchronized void close() {
+            super.close();
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignored, the file is deleted anyway
+            }
+            file.delete();
+        }
+    }
+
+    private abstract class Column {
+
+        final Class type;
+        final BitSet nulls = new BitSet();
+
+        Column(Class type) {
+            this.type = type;
+        }
+
+        final void read(ResultSet rs, int index, int row) throws SQLException, IOException {
+            if (!set(rs, index, row) || rs.wasNull()) {
+                nulls.set(row);
+            }
+        }
+
+        final void read(Object value, int row) throws IOException {
+            if (!put(value, row)) {
+                nulls.set(row);
+            }
+        }
+
+        final Object get(int row) {
+            if (closed) {
+                throw new IllegalStateException("Table closed");
+            }
+            if (row < 0 || row >= rows) {
+                throw new IndexOutOfBoundsException("Row " + row);
+            }
+            return nulls.get(row) ? null : value(row);
+        }
+
+        /**
+         * Reads the value of the current row
+         *
+         * @return false if it is null
+         */
+        abstract boolean set(ResultSet rs, int index, int row) throws SQLException, IOException;
+
+        /**
+         * Stores a value of a table model
+         *
+         * @return false if it is null
+         */
+        abstract boolean put(Object value, int row) throws IOException;
+
+        abstract Object value(int row);
+
+        void done() {
+        }
+    }
+
+    /**
+     * Column of fixed width values, in chunks growing up to CHUNK_ROWS rows
+     */
+    private abstract class FixedColumn extends Column {
+
+        private final int width;
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        FixedColumn(Class type, int width) {
+            super(type);
+            this.width = width;
+        }
+
+        ByteBuffer chunk(int row) throws IOException {
+            final int n = chunkIndex(row);
+            while (chunks.size() <= n) {
+                chunks.add(allocator.allocate(chunkRows(chunks.size()) * width));
+            }
+            return chunks.get(n);
+        }
+
+        ByteBuffer chunkAt(int row) {
+            return chunks.get(chunkIndex(row));
+        }
+
+        int offset(int row) {
+            return chunkOffset(row) * width;
+        }
+    }
+
+    private class IntColumn extends FixedColumn {
+
+        IntColumn() {
+            super(Integer.class, 4);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            chunk(row).putInt(offset(row), rs.getInt(index));
+            return true;
+        }
+
+        @Override
+        boolean put(Object value, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (value == null) {
+                return false;
+            }
+            chunk.putInt(offset(row), ((Number) value).intValue());
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            return Integer.valueOf(chunkAt(row).getInt(offset(row)));
+        }
+    }
+
+    private class LongColumn extends FixedColumn {
+
+        LongColumn() {
+            super(Long.class, 8);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            chunk(row).putLong(offset(row), rs.getLong(index));
+            return true;
+        }
+
+        @Override
+        boolean put(Object value, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (value == null) {
+                return false;
+            }
+            chunk.putLong(offset(row), ((Number) value).longValue());
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            return Long.valueOf(chunkAt(row).getLong(offset(row)));
+        }
+    }
+
+    private class DoubleColumn extends FixedColumn {
+
+        DoubleColumn() {
+            super(Double.class, 8);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            chunk(row).putDouble(offset(row), rs.getDouble(index));
+            return true;
+        }
+
+        @Override
+        boolean put(Object value, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (value == null) {
+                return false;
+            }
+            chunk.putDouble(offset(row), ((Number) value).doubleValue());
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            return Double.valueOf(chunkAt(row).getDouble(offset(row)));
+        }
+    }
+
+    private class BooleanColumn extends FixedColumn {
+
+        BooleanColumn() {
+            super(Boolean.class, 1);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            chunk(row).put(offset(row), rs.getBoolean(index) ? (byte) 1 : (byte) 0);
+            return true;
+        }
+
+        @Override
+        boolean put(Object value, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (value == null) {
+                return false;
+            }
+            chunk.put(offset(row), ((Boolean) value).booleanValue() ? (byte) 1 : (byte) 0);
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            return Boolean.valueOf(chunkAt(row).get(offset(row)) != 0);
+        }
+    }
+
+    private class DateColumn extends FixedColumn {
+
+        private final int sqlType;
+
+        DateColumn(int sqlType) {
+            super(sqlType == Types.DATE ? java.sql.Date.class : sqlType == Types.TIME ? java.sql.Time.class : java.sql.Timestamp.class, 8);
+            this.sqlType = sqlType;
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            return put(rs.getTimestamp(index), row);
+        }
+
+        @Override
+        boolean put(Object value, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (value == null) {
+                return false;
+            }
+            chunk.putLong(offset(row), ((java.util.Date) value).getTime());
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            final long time = chunkAt(row).getLong(offset(row));
+            if (sqlType == Types.DATE) {
+                return new java.sql.Date(time);
+            } else if (sqlType == Types.TIME) {
+                return new java.sql.Time(time);
+            }
+            return new java.sql.Timestamp(time);
+        }
+    }
+
+    /**
+     * Decimals stored as unscaled longs with the column scale. Values that do
+     * not fit are kept on the heap.
+     */
+    private class DecimalColumn extends FixedColumn {
+
+        private final int scale;
+        private final Map<Integer, BigDecimal> overflow = new HashMap<Integer, BigDecimal>();
+
+        DecimalColumn(int scale) {
+            super(BigDecimal.class, 8);
+            this.scale = scale;
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            return put(rs.getBigDecimal(index), row);
+        }
+
+        @Override
+        boolean put(Object o, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (o == null) {
+                return false;
+            }
+            final BigDecimal value = (BigDecimal) o;
+            try {
+                final BigInteger unscaled = value.setScale(scale).unscaledValue();
+                if (unscaled.bitLength() < 64) {
+                    chunk.putLong(offset(row), unscaled.longValue());
+                    return true;
+                }
+            } catch (ArithmeticException e) {
+                // more decimals than the column scale
+            }
+            overflow.put(Integer.valueOf(row), value);
+            return true;
+        }
+
+        @Override
+        Object value(int row) {
+            if (!overflow.isEmpty()) {
+                final BigDecimal value = overflow.get(Integer.valueOf(row));
+                if (value != null) {
+                    return value;
+                }
+            }
+            return BigDecimal.valueOf(chunkAt(row).getLong(offset(row)), scale);
+        }
+    }
+
+    /**
+     * Dictionary encoded strings. The distinct values are written once to an
+     * off heap arena; small dictionaries are also kept decoded on the heap.
+     * Values that do not fit in the dictionary get an entry of their own.
+     */
+    private class StringColumn extends FixedColumn {
+
+        private final FixedColumn entries = new FixedColumn(String.class, 12) {
+
+            @Override
+            boolean set(ResultSet rs, int index, int row) {
+                return false;
+            }
+
+            @Override
+            boolean put(Object value, int row) {
+                return false;
+            }
+
+            @Override
+            Object value(int row) {
+                return null;
+            }
+        };
+        private final List<ByteBuffer> arena = new ArrayList<ByteBuffer>();
+        private Map<String, Integer> codes = new HashMap<String, Integer>();
+        private long codeChars;
+        private int size;
+        private int arenaOffset;
+        private String[] decoded;
+
+        StringColumn() {
+            super(String.class, 4);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException, IOException {
+            return put(rs.getString(index), row);
+        }
+
+        @Override
+        boolean put(Object o, int row) throws IOException {
+            final ByteBuffer chunk = chunk(row);
+            if (o == null) {
+                return false;
+            }
+            final String value = o.toString();
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = Integer.valueOf(add(value));
+                if (codes.size() < MAX_DICTIONARY && codeChars + value.length() <= MAX_DICTIONARY_CHARS) {
+                    codes.put(value, code);
+                    codeChars += value.length();
+                }
+            }
+            chunk.putInt(offset(row), code.intValue());
+            return true;
+        }
+
+        private int add(String value) throws IOException {
+            final byte[] b = value.getBytes("UTF-8");
+            final int capacity = arena.isEmpty() ? 0 : arena.get(arena.size() - 1).capacity();
+            if (arenaOffset + b.length > capacity) {
+                final int next = capacity == 0 ? FIRST_ARENA_SIZE : Math.min(ARENA_SIZE, capacity * 2);
+                arena.add(allocator.allocate(Math.max(next, b.length)));
+                arenaOffset = 0;
+            }
+            final ByteBuffer buffer = arena.get(arena.size() - 1);
+            for (int i = 0; i < b.length; i++) {
+                buffer.put(arenaOffset + i, b[i]);
+            }
+            final int code = size++;
+            final ByteBuffer entry = entries.chunk(code);
+            final int offset = entries.offset(code);
+            entry.putInt(offset, arena.size() - 1);
+            entry.putInt(offset + 4, arenaOffset);
+            entry.putInt(offset + 8, b.length);
+            arenaOffset += b.length;
+            return code;
+        }
+
+        @Override
+        void done() {
+            codes = null;
+            if (size <= HEAP_DICTIONARY) {
+                decoded = new String[size];
+                for (int i = 0; i < size; i++) {
+                    decoded[i] = decode(i);
+                }
+            }
+        }
+
+        @Override
+        Object value(int row) {
+            final int code = chunkAt(row).getInt(offset(row));
+            return decoded != null ? decoded[code] : decode(code);
+        }
+
+        private String decode(int code) {
+            final ByteBuffer entry = entries.chunkAt(code);
+            final int offset = entries.offset(code);
+            final ByteBuffer buffer = arena.get(entry.getInt(offset));
+            final int start = entry.getInt(offset + 4);
+            final byte[] b = new byte[entry.getInt(offset + 8)];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = buffer.get(start + i);
+            }
+            try {
+                return new String(b, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Values of other types, kept on the heap
+     */
+    private class ObjectColumn extends Column {
+
+        private final List<Object> values = new ArrayList<Object>();
+
+        ObjectColumn(Class type) {
+            super(type);
+        }
+
+        @Override
+        boolean set(ResultSet rs, int index, int row) throws SQLException {
+            return put(rs.getObject(index), row);
+        }
+
+        @Override
+        boolean put(Object value, int row) {
+            values.add(value);
+            return value != null;
+        }
+
+        @Override
+        Object value(int row) {
+            return values.get(row);
+        }
+    }
+}
@@ -18,8 +18,25 @@
 package org.jpos.ee.pentaho;
 
 /**
- * The supported output types
+ * The supported output types. CSV, HTML_TABLE and XLSX are streamed straight
+ * from the query result set, without the report layout.
  */
 public enum OutputType {
-    PDF, EXCEL, HTML
+    PDF("pdf"), EXCEL("xls"), HTML("html"), CSV("csv"), HTML_TABLE("html"), XLSX("xlsx");
+    private final String extension;
+
+    private OutputType(String extension) {
+        this.extension = extension;
+    }
+
+    public boolean isStreamed() {
+        return this == CSV || this == HTML_TABLE || this == XLSX;
+    }
+
+    /**
+     * @return usual file name extension of the output, without the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.pentaho.reporting.engine.classic.core.MasterReport;
+import org.pentaho.reporting.engine.classic.core.ReportProcessingException;
+import org.pentaho.reporting.engine.classic.core.modules.output.pageable.base.PageableReportProcessor;
+import org.pentaho.reporting.engine.classic.core.modules.output.table.html.AllItemsHtmlPrinter;
+import org.pentaho.reporting.engine.classic.core.modules.output.table.html.FileSystemURLRewriter;
+import org.pentaho.reporting.engine.classic.core.modules.output.table.html.HtmlPrinter;
+import org.pentaho.reporting.engine.classic.core.modules.output.table.html.PageableHtmlOutputProcessor;
+import org.pentaho.reporting.libraries.base.config.ModifiableConfiguration;
+import org.pentaho.reporting.libraries.repository.ContentLocation;
+import org.pentaho.reporting.libraries.repository.DefaultNameGenerator;
+import org.pentaho.reporting.libraries.repository.stream.StreamRepository;
+
+/**
+ * A report paginated once for an HTML viewer, that renders any range of its
+ * pages on request.
+ * <p/>
+ * The query is run and the whole report laid out when it is created; the
+ * page states are kept, so later pages are rendered from the state of the
+ * page instead of running the query and the layout again. Each page is
+ * printed as a body fragment with inline styles and a range is written as
+ * one document with a <code>div class="page"</code> per page. Instances are
+ * held per viewer session by {@link PagedReportSessions} and must be closed
+ * when the session ends. The sessions pin a report while a request renders
+ * it, and closing a pinned report is deferred until it is unpinned.
+ *
+ * @author jpaoletti
+ */
+public class PagedHtmlReport {
+
+    private static final String HTML_MODULE = "org.pentaho.reporting.engine.classic.core.modules.output.table.html.";
+    public static final String BODY_FRAGMENT = HTML_MODULE + "BodyFragment";
+    public static final String INLINE_STYLES = HTML_MODULE + "InlineStyles";
+    public static final String ENCODING = HTML_MODULE + "Encoding";
+    private final MasterReport report;
+    private final PageableHtmlOutputProcessor outputProcessor;
+    private final PageProcessor processor;
+    private final String encoding;
+    private final int pageCount;
+    private final long paginationTime;
+    private boolean closed;
+    private final Object pins = new Object();
+    private int pinned;
+    private boolean closing;
+
+    /**
+     * Paginates the report
+     *
+     * @param report the report, with its data factory and parameters set.
+     * Its configuration is changed to print body fragments.
+     */
+    public PagedHtmlReport(MasterReport report) throws ReportProcessingException {
+        this.report = report;
+        final ModifiableConfiguration config = report.getReportConfiguration();
+        this.encoding = config.getConfigProperty(ENCODING, "UTF-8");
+        config.setConfigProperty(ENCODING, encoding);
+        config.setConfigProperty(BODY_FRAGMENT, "true");
+        config.setConfigProperty(INLINE_STYLES, "true");
+        this.outputProcessor = new PageableHtmlOutputProcessor(report.getConfiguration());
+        this.processor = new PageProcessor(report, outputProcessor);
+        final long start = System.currentTimeMillis();
+        try {
+            processor.paginate();
+        } catch (ReportProcessingException e) {
+            processor.close();
+            throw e;
+        } catch (RuntimeException e) {
+            processor.close();
+            throw e;
+        }
+        this.paginationTime = System.currentTimeMillis() - start;
+        this.pageCount = processor.getLogicalPageCount();
+    }
+
+    /**
+     * Writes a range of pages as an HTML document. The range is clipped to
+     * the pages of the report.
+     *
+     * @param from first page, starting at 0
+     * @param to last page, inclusive
+     * @param out where the pages are written. It is not closed.
+     * @return the number of pages written
+     * @throws ReportProcessingException if the report was closed or a page
+     * fails to render
+     */
+    public synchronized int render(int from, int to, OutputStream out) throws ReportProcessingException {
+        if (closed) {
+            throw new ReportProcessingException("Paged report is closed");
+        }
+        final int first = Math.max(0, from);
+        final int last = Math.min(pageCount - 1, to);
+        try {
+            write(out, "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n"
+                    + "<html xmlns=\"http://www.w3.org/1999/xhtml\">\n<head>\n"
+                    + "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=" + encoding + "\" />\n"
+                    + "</head>\n<body>\n");
+            for (int page = first; page <= last; page++) {
+                write(out, "<div class=\"page\" id=\"page-" + (page + 1) + "\">\n");
+                renderPage(page, out);
+                write(out, "</div>\n");
+            }
+            write(out, "</body>\n</html>\n");
+        } catch (IOException e) {
+            throw new ReportProcessingException("Unable to write the report pages", e);
+        }
+        return Math.max(0, last - first + 1);
+    }
+
+    private void renderPage(int page, OutputStream out) throws ReportProcessingException, IOException {
+        // The printer closes its document after each page
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final StreamRepository repository = new StreamRepository(buffer);
+        final ContentLocation root = repository.getRoot();
+        final HtmlPrinter printer = new AllItemsHtmlPrinter(report.getResourceManager());
+        printer.setContentWriter(root, new DefaultNameGenerator(root, "index", "html"));
+        printer.setDataWriter(null, null);
+        printer.setUrlRewriter(new FileSystemURLRewriter());
+        outputProcessor.setPrinter(printer);
+        processor.renderPage(page);
+        buffer.writeTo(out);
+    }
+
+    private void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(encoding));
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return time taken by the query and the layout of the whole report
+     */
+    public long getPaginationTime() {
+        return paginationTime;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Releases the page states and the data of the report. Waits for a
+     * render in progress; a pinned report is released when unpinned.
+     */
+    public void close() {
+        synchronized (pins) {
+            closing = true;
+            if (pinned > 0) {
+                return;
+            }
+        }
+        release();
+    }
+
+    /**
+     * Keeps the report open until {@link #unpin()}, even if it is closed
+     * meanwhile
+     *
+     * @return <code>false</code> if the report is already closed or closing
+     */
+    boolean pin() {
+        synchronized (pins) {
+            if (closing) {
+                return false;
+            }
+            pinned++;
+            return true;
+        }
+    }
+
+    /**
+     * Closes the report if it was closed while pinned
+     */
+    void unpin() {
+        synchronized (pins) {
+            if (--pinned > 0 || !closing) {
+                return;
+            }
+        }
+        release();
+    }
+
+    private synchronized void release() {
+        if (!closed) {
+            closed = true;
+            processor.close();
+        }
+    }
+
+    /**
+     * Keeps every page state reachable, as the print preview does, so any
+     * page can be rendered after the pagination.
+     */
+    private static class PageProcessor extends PageableReportProcessor {
+
+        PageProcessor(MasterReport report, PageableHtmlOutputProcessor outputProcessor) throws ReportProcessingException {
+            super(report, outputProcessor);
+            setFullStreamingProcessor(false);
+            setHandleInterruptedState(true);
+        }
+
+        void renderPage(int page) throws ReportProcessingException {
+            processPage(getLogicalPageState(page), true);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paginated reports kept per viewer session, so the next page of a report
+ * is rendered from the page states of the previous request.
+ * <p/>
+ * A session holds one report at a time: asking for another report, other
+ * parameters or a redefined report replaces it. Sessions not used for
+ * <code>ttl</code> ms are dropped, and over <code>maxSessions</code> the
+ * least recently used one is, closing its report. Reports are returned
+ * pinned, so one dropped while a request renders it is closed once the
+ * request unpins it.
+ *
+ * @author jpaoletti
+ */
+public class PagedReportSessions {
+
+    private final long ttl;
+    private final int maxSessions;
+    private final LinkedHashMap<String, Entry> sessions = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    public PagedReportSessions(long ttl, int maxSessions) {
+        this.ttl = ttl;
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+
+    /**
+     * @param session viewer session id
+     * @param definition current definition of the report
+     * @param parameters report parameters
+     * @return the paginated report of the session, pinned until the caller
+     * calls {@link PagedHtmlReport#unpin()}, or <code>null</code> if it has
+     * none or it was created for another report or parameters
+     */
+    public PagedHtmlReport get(String session, PentahoReportDefinition definition, Map<String, Object> parameters) {
+        final List<PagedHtmlReport> dropped = new ArrayList<PagedHtmlReport>();
+        try {
+            synchronized (sessions) {
+                expire(dropped);
+                final Entry entry = sessions.get(session);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.definition != definition || !entry.parameters.equals(copy(parameters))) {
+                    sessions.remove(session);
+                    dropped.add(entry.report);
+                    return null;
+                }
+                if (!entry.report.pin()) {
+                    sessions.remove(session);
+                    return null;
+                }
+                entry.lastAccess = System.currentTimeMillis();
+                return entry.report;
+            }
+        } finally {
+            close(dropped);
+        }
+    }
+
+    /**
+     * Keeps the report of a session, pinned until the caller calls
+     * {@link PagedHtmlReport#unpin()}
+     */
+    public void put(String session, PentahoReportDefinition definition, Map<String, Object> parameters, PagedHtmlReport report) {
+        final List<PagedHtmlReport> dropped = new ArrayList<PagedHtmlReport>();
+        try {
+            report.pin();
+            synchronized (sessions) {
+                final Entry old = sessions.put(session, new Entry(definition, copy(parameters), report));
+                if (old != null && old.report != report) {
+                    dropped.add(old.report);
+                }
+                expire(dropped);
+                final Iterator<Entry> it = sessions.values().iterator();
+                while (sessions.size() > maxSessions && it.hasNext()) {
+                    dropped.add(it.next().report);
+                    it.remove();
+                }
+            }
+        } finally {
+            close(dropped);
+        }
+    }
+
+    /**
+     * Closes the report of a session
+     *
+     * @return <code>true</code> if the session had a report
+     */
+    public boolean remove(String session) {
+        final Entry entry;
+        synchronized (sessions) {
+            entry = sessions.remove(session);
+        }
+        if (entry != null) {
+            entry.report.close();
+        }
+        return entry != null;
+    }
+
+    /**
+     * @return sessions with a report, after dropping the expired ones
+     */
+    public int size() {
+        final List<PagedHtmlReport> dropped = new ArrayList<PagedHtmlReport>();
+        try {
+            synchronized (sessions) {
+                expire(dropped);
+                return sessions.size();
+            }
+        } finally {
+            close(dropped);
+        }
+    }
+
+    public void clear() {
+        final List<PagedHtmlReport> dropped = new ArrayList<PagedHtmlReport>();
+        synchronized (sessions) {
+            for (Entry entry : sessions.values()) {
+                dropped.add(entry.report);
+            }
+            sessions.clear();
+        }
+        close(dropped);
+    }
+
+    private void expire(List<PagedHtmlReport> dropped) {
+        if (ttl <= 0) {
+            return;
+        }
+        final long limit = System.currentTimeMillis() - ttl;
+        final Iterator<Entry> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.lastAccess < limit) {
+                dropped.add(entry.report);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes the dropped reports outside of the lock. The ones being
+     * rendered are closed when unpinned.
+     */
+    private void close(List<PagedHtmlReport> dropped) {
+        for (PagedHtmlReport report : dropped) {
+            report.close();
+        }
+    }
+
+    private static Map<String, Object> copy(Map<String, Object> parameters) {
+        return parameters != null ? new HashMap<String, Object>(parameters) : new HashMap<String, Object>();
+    }
+
+    private static class Entry {
+
+        private final PentahoReportDefinition definition;
+        private final Map<String, Object> parameters;
+        private final PagedHtmlReport report;
+        private long lastAccess = System.currentTimeMillis();
+
+        Entry(PentahoReportDefinition definition, Map<String, Object> parameters, PagedHtmlReport report) {
+            this.definition = definition;
+            this.parameters = parameters;
+            this.report = report;
+        }
+    }
+}
@@ -17,21 +17,69 @@
  */
 package org.jpos.ee.pentaho;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.XMLOutputter;
 import org.jpos.core.ConfigurationException;
+import org.jpos.ee.pentaho.exception.ReportException;
+import org.jpos.ee.pentaho.exception.ReportRejectedException;
 import org.jpos.q2.QBeanSupport;
+import org.jpos.util.LogEvent;
+import org.jpos.util.Logger;
 import org.jpos.util.NameRegistrar;
+import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
+import org.pentaho.reporting.engine.classic.core.ReportProcessingException;
+import org.pentaho.reporting.libraries.resourceloader.ResourceManager;
 
 /**
  *
  * @author jpaoletti
  */
-public class PentahoQBean extends QBeanSupport {
+public class PentahoQBean extends QBeanSupport implements PentahoQBeanMBean {
 
-    private Map<String, PentahoReportDefinition> reports;
+    private volatile Map<String, PentahoReportDefinition> reports;
+    private final Object reloadLock = new Object();
+    private Map<String, String> fileReports = Collections.emptyMap();
+    private long reportsFileModified;
+    private final Map<String, Long> watchedFiles = new HashMap<String, Long>();
+    private ScheduledExecutorService reloader;
+    private ReportTemplateCache templateCache;
+    private ResourceManager resourceManager;
+    private ReportResourceCache resourceCache;
+    private PooledConnectionProvider connectionPool;
+    private Map<String, ReportDataSource> dataSources = Collections.emptyMap();
+    private volatile ReportExecutor executor;
+    private volatile ExecutorService batchExecutor;
+    private ReportResultCache resultCache;
+    private QueryResultCache queryCache;
+    private SqlRegistry sqlRegistry;
+    private ReportScheduler scheduler;
+    private volatile PagedReportSessions pagedReports;
+    private final ReportMetrics metrics = new ReportMetrics();
 
     public AbstractReportGenerator getGenerator(final String report, final Map<String, Object> parameters) throws ConfigurationException {
         final PentahoReportDefinition r = reports.get(report);
@@ -41,24 +89,288 @@ public class PentahoQBean extends QBeanSupport {
         final AbstractReportGenerator generator = (AbstractReportGenerator) getFactory().newInstance(cfg.get("generator", "org.jpos.ee.pentaho.BasicReportGenerator"));
         generator.setLog(getLog());
         generator.setDebug(cfg.getBoolean("debug", false));
-        generator.setConnectionDriver(cfg.get("connection-driver"));
+        final ReportDataSource dataSource = r.getDataSource() != null ? dataSources.get(r.getDataSource()) : connectionPool;
+        generator.setConnectionDriver(r.getDataSource() != null ? dataSource.getDriver() : cfg.get("connection-driver"));
         generator.setConnectionUser(cfg.get("connection-user"));
         generator.setConnectionUrl(cfg.get("connection-url"));
         generator.setConnectionPassword(cfg.get("connection-password"));
         generator.setQueryPath(r.getSqlFile());
         generator.setReportPath(r.getReportFile());
+        generator.setDefinition(r);
+        generator.setTemplateCache(templateCache);
+        generator.setResourceManager(resourceManager);
+        generator.setConnectionProvider(dataSource);
+        generator.setResultCache(resultCache);
+        generator.setQueryCache(queryCache);
+        generator.setSqlRegistry(sqlRegistry);
+        generator.setQueryEncoding(sqlRegistry.getEncoding());
+        generator.setFetchSize(cfg.getInt("stream-fetch-size", 1000));
+        generator.setMetrics(metrics);
+        generator.setLogRuns(cfg.getBoolean("log-runs", false));
+        generator.setFileBufferSize(cfg.getInt("file-buffer-size", AtomicFileOutputStream.DEFAULT_BUFFER_SIZE));
+        generator.setFileSync(cfg.getBoolean("file-sync", false));
+        if (cfg.get("temp-dir", null) != null) {
+            generator.setTempDir(new File(cfg.get("temp-dir")));
+        }
         generator.setParameters(parameters);
         return generator;
     }
 
+    /**
+     * Generates a report on the report executor
+     *
+     * @param report report name
+     * @param parameters report parameters
+     * @param outputType output type
+     * @param out where the report is written. It is not closed.
+     * @param callback optional callback, may be <code>null</code>
+     * @return a future for the given output stream
+     * @throws ConfigurationException if the report is not defined
+     * @throws ReportRejectedException if the executor does not accept the run
+     */
+    public Future<OutputStream> submit(
+            final String report,
+            final Map<String, Object> parameters,
+            final OutputType outputType,
+            final OutputStream out,
+            final ReportCallback callback) throws ConfigurationException, ReportRejectedException {
+        final ReportExecutor e = executor;
+        if (e == null) {
+            throw new ReportRejectedException("Report executor is not running");
+        }
+        final AbstractReportGenerator generator = getGenerator(report, parameters);
+        return e.submit(generator.getDefinition(), generator, outputType, out, callback);
+    }
+
+    public Future<OutputStream> submit(
+            final String report,
+            final Map<String, Object> parameters,
+            final OutputType outputType,
+            final OutputStream out) throws ConfigurationException, ReportRejectedException {
+        return submit(report, parameters, outputType, out, null);
+    }
+
+    /**
+     * Generates the same report once per parameter map, in parallel on the
+     * batch pool, writing each result to the sink. All the items share the
+     * cached template, query and connection pool.
+     *
+     * @param report report name
+     * @param parameters parameters of each item
+     * @param outputType output type
+     * @param sink destination of each report
+     * @return the status and timing of each item
+     * @throws ConfigurationException if the report is not defined
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public BatchResult generateBatch(
+            final String report,
+            final List<Map<String, Object>> parameters,
+            final OutputType outputType,
+            final ReportSink sink) throws ConfigurationException, InterruptedException {
+        if (reports.get(report) == null) {
+            throw new ConfigurationException("Missing report");
+        }
+        final ExecutorService e = batchExecutor;
+        if (e == null) {
+            throw new ConfigurationException("Service is not running");
+        }
+        final ReportSink target = getSink(report, sink);
+        final BatchResult result = new BatchResult(report, outputType, parameters.size());
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(parameters.size());
+        for (int i = 0; i < parameters.size(); i++) {
+            final int index = i;
+            final Map<String, Object> p = parameters.get(i);
+            tasks.add(new Callable<Object>() {
+
+                @Override
+                public Object call() {
+                    final long start = System.currentTimeMillis();
+                    Throwable error = null;
+                    OutputStream out = null;
+                    try {
+                        final AbstractReportGenerator generator = getGenerator(report, p);
+                        out = target.open(index, p);
+                        generator.generateReport(outputType, out);
+                    } catch (Throwable t) {
+                        error = t;
+                    } finally {
+                        if (out != null) {
+                            try {
+                                target.close(index, out, error == null);
+                            } catch (IOException ex) {
+                                if (error == null) {
+                                    error = ex;
+                                }
+                            }
+                        }
+                    }
+                    result.set(new BatchResult.Item(index, p, System.currentTimeMillis() - start, error));
+                    return null;
+                }
+            });
+        }
+        final long start = System.currentTimeMillis();
+        e.invokeAll(tasks);
+        result.setElapsed(System.currentTimeMillis() - start);
+        if (cfg.getBoolean("log-runs", false)) {
+            getLog().info(result);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the query of a report declaring a <code>split-column</code> once
+     * and writes one report per value of that column to the sink.
+     *
+     * @param report report name
+     * @param parameters report parameters
+     * @param outputType output type, PDF, EXCEL or HTML
+     * @param sink destination of each report
+     * @return the status and timing of each generated report
+     * @throws ConfigurationException if the report is not defined
+     * @throws ReportException if the query fails or the output is not supported
+     */
+    public BatchResult generateSplit(
+            final String report,
+            final Map<String, Object> parameters,
+            final OutputType outputType,
+            final ReportSink sink) throws ConfigurationException, ReportException {
+        final BatchResult result = getGenerator(report, parameters).generateSplitReport(outputType, getSink(report, sink));
+        if (cfg.getBoolean("log-runs", false)) {
+            getLog().info(result);
+        }
+        return result;
+    }
+
+    /**
+     * Renders a range of pages of a report as HTML for an interactive
+     * viewer. The report is paginated on the first request of the session
+     * and the next requests with the same report and parameters render their
+     * pages from it, without running the query again.
+     *
+     * @param session viewer session id
+     * @param report report name
+     * @param parameters report parameters
+     * @param from first page, starting at 0
+     * @param to last page, inclusive
+     * @param out where the pages are written. It is not closed.
+     * @return total pages of the report
+     * @throws ConfigurationException if the report is not defined
+     * @throws ReportException if the query fails
+     * @throws ReportProcessingException if the layout fails
+     */
+    public int renderPages(
+            final String session,
+            final String report,
+            final Map<String, Object> parameters,
+            final int from,
+            final int to,
+            final OutputStream out) throws ConfigurationException, ReportException, ReportProcessingException {
+        final PagedReportSessions sessions = pagedReports;
+        if (sessions == null) {
+            throw new ConfigurationException("Service is not running");
+        }
+        final PentahoReportDefinition r = reports.get(report);
+        if (r == null) {
+            throw new ConfigurationException("Missing report");
+        }
+        PagedHtmlReport paged = sessions.get(session, r, parameters);
+        if (paged == null) {
+            paged = getGenerator(report, parameters).generatePagedReport();
+            sessions.put(session, r, parameters, paged);
+        }
+        try {
+            paged.render(from, to, out);
+            return paged.getPageCount();
+        } finally {
+            paged.unpin();
+        }
+    }
+
+    /**
+     * Releases the paginated report of a viewer session
+     *
+     * @return <code>true</code> if the session had one
+     */
+    public boolean closePages(String session) {
+        final PagedReportSessions sessions = pagedReports;
+        return sessions != null && sessions.remove(session);
+    }
+
+    /**
+     * Applies the output chunking configured for a report to a sink
+     *
+     * @param report report name
+     * @param sink where the report, or each of its parts, is written
+     * @return the sink to write the report to
+     */
+    public ReportSink getSink(String report, ReportSink sink) {
+        final PentahoReportDefinition r = reports.get(report);
+        if (r != null && r.getChunkSize() > 0) {
+            return new ChunkingSink(sink, r.getChunkSize());
+        }
+        return sink;
+    }
+
     @Override
     protected void initService() throws Exception {
         NameRegistrar.register(getName(), this);
+        ClassicEngineBoot.getInstance().start();
+        resourceManager = new ResourceManager();
+        resourceManager.registerDefaults();
+        if (cfg.getBoolean("resource-cache", true)) {
+            resourceCache = new ReportResourceCache(
+                    cfg.getInt("resource-cache-max-elements", 500),
+                    cfg.getLong("resource-cache-max-size", 32L * 1024 * 1024));
+            resourceManager.setBundleCache(resourceCache.getBundleCache());
+            resourceManager.setDataCache(resourceCache);
+            resourceManager.setFactoryCache(resourceCache);
+        }
+        if (cfg.getBoolean("font-preload", true)) {
+            final String indexDir = cfg.get("font-index-dir", null);
+            final ReportFontRegistry fonts = new ReportFontRegistry(indexDir != null && indexDir.length() > 0 ? new File(indexDir) : null);
+            try {
+                fonts.load();
+                getLog().info(fonts);
+            } catch (IOException e) {
+                getLog().warn("Unable to keep the font index", e);
+            }
+        }
+        if (cfg.getBoolean("template-cache", true)) {
+            templateCache = new ReportTemplateCache();
+        }
+        if (cfg.getBoolean("result-cache", false)) {
+            resultCache = new ReportResultCache(
+                    cfg.getInt("result-cache-max-elements", 100),
+                    cfg.getLong("result-cache-max-memory", 64L * 1024 * 1024),
+                    cfg.getBoolean("result-cache-overflow-to-disk", false)
+                    ? new File(cfg.get("result-cache-dir", System.getProperty("java.io.tmpdir") + File.separator + getName()))
+                    : null,
+                    cfg.getLong("result-cache-max-disk", 256L * 1024 * 1024),
+                    cfg.getInt("result-cache-max-entry-size", 5 * 1024 * 1024));
+        }
+        if (cfg.getBoolean("query-cache", false)) {
+            final String queryCacheDir = cfg.get("query-cache-dir", cfg.get("temp-dir", null));
+            queryCache = new QueryResultCache(
+                    cfg.getLong("query-cache-max-memory", 64L * 1024 * 1024),
+                    cfg.getLong("query-cache-max-entry-memory", 8L * 1024 * 1024),
+                    queryCacheDir != null ? new File(queryCacheDir) : null,
+                    cfg.getLong("query-cache-max-disk", 1024L * 1024 * 1024));
+        }
+        initConnectionPool();
+        initDataSources();
         initReports();
+        warmUp(reports.values());
     }
 
+    /**
+     * Reads the <code>report</code> elements of the bean and of the
+     * <code>reports-file</code> property, if any
+     */
     protected void initReports() throws ConfigurationException {
-        reports = new HashMap<String, PentahoReportDefinition>();
+        sqlRegistry = new SqlRegistry(cfg.get("sql-encoding", "UTF-8"), cfg.getBoolean("sql-reload", false));
+        final Map<String, PentahoReportDefinition> res = new HashMap<String, PentahoReportDefinition>();
         Iterator iter = getPersist().getChildren("report").iterator();
         while (iter.hasNext()) {
             Element e = (Element) iter.next();
@@ -66,24 +378,788 @@ public class PentahoQBean extends QBeanSupport {
             if (name == null) {
                 throw new ConfigurationException("missing report name");
             }
-            if (reports.get(name) != null) {
+            if (res.get(name) != null) {
+                throw new ConfigurationException("Report '" + name + "' already defined");
+            }
+            final PentahoReportDefinition report = initReport(e);
+            loadQuery(report);
+            res.put(name, report);
+        }
+        final File file = getReportsFile();
+        final Map<String, String> sources = new HashMap<String, String>();
+        if (file != null) {
+            reportsFileModified = file.lastModified();
+            for (Element e : readReportsFile(file, res.keySet())) {
+                final PentahoReportDefinition report = initReport(e);
+                loadQuery(report);
+                res.put(report.getName(), report);
+                sources.put(report.getName(), new XMLOutputter().outputString(e));
+            }
+        }
+        fileReports = sources;
+        watchedFiles.clear();
+        for (PentahoReportDefinition report : res.values()) {
+            filesChanged(report);
+        }
+        reports = res;
+    }
+
+    /**
+     * Looks for changes in the <code>reports-file</code> and in the template
+     * and query files of the reports. Reports added, changed or removed from
+     * the reports file are applied by replacing the report map, so reports
+     * being generated keep the definition they started with. Reports whose
+     * files changed get their cached template and query dropped and are
+     * warmed up again.
+     *
+     * @return number of reports added, replaced, removed or reloaded
+     */
+    public int reloadReports() {
+        synchronized (reloadLock) {
+            final Map<String, PentahoReportDefinition> next = new HashMap<String, PentahoReportDefinition>(reports);
+            final Map<String, PentahoReportDefinition> changed = new HashMap<String, PentahoReportDefinition>();
+            final List<PentahoReportDefinition> removed = new ArrayList<PentahoReportDefinition>();
+            final File file = getReportsFile();
+            if (file != null && file.lastModified() != reportsFileModified) {
+                reportsFileModified = file.lastModified();
+                try {
+                    final Set<String> defined = new HashSet<String>(next.keySet());
+                    defined.removeAll(fileReports.keySet());
+                    final Map<String, String> sources = new HashMap<String, String>();
+                    final List<PentahoReportDefinition> definitions = new ArrayList<PentahoReportDefinition>();
+                    for (Element e : readReportsFile(file, defined)) {
+                        final String name = e.getAttributeValue("name");
+                        final String source = new XMLOutputter().outputString(e);
+                        sources.put(name, source);
+                        if (!source.equals(fileReports.get(name))) {
+                            definitions.add(initReport(e));
+                        }
+                    }
+                    for (String name : fileReports.keySet()) {
+                        if (!sources.containsKey(name)) {
+                            removed.add(next.remove(name));
+                        }
+                    }
+                    for (PentahoReportDefinition report : definitions) {
+                        final PentahoReportDefinition old = next.put(report.getName(), report);
+                        if (old != null) {
+                            removed.add(old);
+                        }
+                        changed.put(report.getName(), report);
+                    }
+                    fileReports = sources;
+                } catch (ConfigurationException e) {
+                    getLog().warn("Reports file " + file + " not reloaded", e);
+                }
+            }
+            for (PentahoReportDefinition report : next.values()) {
+                if (filesChanged(report)) {
+                    changed.put(report.getName(), report);
+                }
+            }
+            if (changed.isEmpty() && removed.isEmpty()) {
+                return 0;
+            }
+            final LogEvent evt = getLog().createInfo("reload");
+            for (PentahoReportDefinition report : removed) {
+                if (templateCache != null) {
+                    templateCache.remove(report);
+                }
+                if (executor != null) {
+                    executor.reset(report.getName());
+                }
+                if (!changed.containsKey(report.getName())) {
+                    evt.addMessage("removed " + report.getName());
+                }
+            }
+            for (PentahoReportDefinition report : changed.values()) {
+                if (templateCache != null) {
+                    templateCache.remove(report);
+                }
+                loadQuery(report);
+                evt.addMessage((reports.containsKey(report.getName()) ? "reloaded " : "added ") + report.getName());
+            }
+            reports = next;
+            for (PentahoReportDefinition report : removed) {
+                if (report.getSqlFile() != null && !isQueryUsed(report.getSqlFile())) {
+                    sqlRegistry.remove(report.getSqlFile());
+                }
+            }
+            updateSchedules();
+            Logger.log(evt);
+            warmUp(changed.values());
+            return changed.size() + removed.size();
+        }
+    }
+
+    private boolean isQueryUsed(String sqlFile) {
+        for (PentahoReportDefinition report : reports.values()) {
+            if (sqlFile.equals(report.getSqlFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the template or query file of the report changed since
+     * the last call
+     */
+    private boolean filesChanged(PentahoReportDefinition report) {
+        boolean res = false;
+        for (String path : new String[]{report.getReportFile(), report.getSqlFile()}) {
+            if (path == null) {
+                continue;
+            }
+            final Long lastModified = Long.valueOf(new File(path).lastModified());
+            final Long old = watchedFiles.put(path, lastModified);
+            res |= old != null && !old.equals(lastModified);
+        }
+        return res;
+    }
+
+    private File getReportsFile() {
+        final String path = cfg.get("reports-file", null);
+        return path != null && path.trim().length() > 0 ? new File(path.trim()) : null;
+    }
+
+    /**
+     * @param file an xml file with <code>report</code> elements under its root
+     * @param defined names of the reports defined elsewhere
+     * @return the report elements of the file
+     */
+    private List<Element> readReportsFile(File file, Set<String> defined) throws ConfigurationException {
+        final Element root;
+        try {
+            root = new SAXBuilder().build(file).getRootElement();
+        } catch (JDOMException e) {
+            throw new ConfigurationException("Invalid reports file " + file, e);
+        } catch (IOException e) {
+            throw new ConfigurationException("Unable to read reports file " + file, e);
+        }
+        final List<Element> res = new ArrayList<Element>();
+        final Set<String> names = new HashSet<String>();
+        for (Object o : root.getChildren("report")) {
+            final Element e = (Element) o;
+            final String name = e.getAttributeValue("name");
+            if (name == null) {
+                throw new ConfigurationException("missing report name in " + file);
+            }
+            if (defined.contains(name) || !names.add(name)) {
                 throw new ConfigurationException("Report '" + name + "' already defined");
             }
-            reports.put(name, initReport(e));
+            res.add(e);
+        }
+        return res;
+    }
+
+    protected void initConnectionPool() {
+        if (cfg.get("connection-driver", null) == null || !cfg.getBoolean("connection-pool", true)) {
+            return;
+        }
+        connectionPool = new PooledConnectionProvider(
+                cfg.get("connection-driver"),
+                cfg.get("connection-url"),
+                cfg.get("connection-user"),
+                cfg.get("connection-password"),
+                cfg.getInt("pool-min-size", 0),
+                cfg.getInt("pool-max-size", 8),
+                cfg.get("pool-validation-query", null),
+                cfg.getLong("pool-idle-timeout", 300000L),
+                cfg.getLong("pool-max-wait", 30000L));
+        connectionPool.setPoolPreparedStatements(cfg.getBoolean("pool-prepared-statements", true));
+    }
+
+    /**
+     * Loads the template and query of the reports with a <code>warmup</code>
+     * attribute and renders the ones set to <code>render</code> once per
+     * warm-up output type, logging the time taken by each step. Failures are
+     * logged and do not stop the bean.
+     */
+    protected void warmUp(Collection<PentahoReportDefinition> definitions) {
+        final LogEvent evt = getLog().createInfo("warmup");
+        final long start = System.currentTimeMillis();
+        int count = 0;
+        for (PentahoReportDefinition report : definitions) {
+            if (PentahoReportDefinition.WARMUP_NONE.equals(report.getWarmUp())) {
+                continue;
+            }
+            count++;
+            final StringBuilder sb = new StringBuilder(report.getName());
+            try {
+                final Map<String, Object> parameters = new HashMap<String, Object>();
+                final AbstractReportGenerator generator = getGenerator(report.getName(), parameters);
+                generator.setResultCache(null);
+                generator.setQueryCache(null);
+                generator.setMetrics(null);
+                long t = System.currentTimeMillis();
+                generator.getReportDefinition();
+                sb.append(" template=").append(System.currentTimeMillis() - t).append("ms");
+                if (report.getSqlFile() != null) {
+                    t = System.currentTimeMillis();
+                    final SqlTemplate template = generator.getQueryTemplate();
+                    sb.append(" sql=").append(System.currentTimeMillis() - t).append("ms");
+                    // the warm-up query runs without values
+                    for (String name : template.getParameterNames()) {
+                        parameters.put(SqlTemplate.SQL_PREFIX + name, null);
+                    }
+                }
+                if (PentahoReportDefinition.WARMUP_RENDER.equals(report.getWarmUp())) {
+                    for (OutputType outputType : report.getWarmUpOutputs()) {
+                        t = System.currentTimeMillis();
+                        final long bytes = generator.warmUp(outputType, report.getWarmUpRows());
+                        sb.append(String.format(" %s=%dms/%d", outputType, System.currentTimeMillis() - t, bytes));
+                    }
+                }
+            } catch (Exception e) {
+                sb.append(" failed: ").append(e);
+                getLog().warn(String.format("Warm-up of report '%s' failed", report.getName()), e);
+            }
+            evt.addMessage(sb.toString());
+        }
+        if (count > 0) {
+            evt.addMessage(String.format("%d reports in %dms", count, System.currentTimeMillis() - start));
+            Logger.log(evt);
+        }
+    }
+
+    /**
+     * Creates the pools of the <code>datasource</code> elements and the
+     * groups of them. Unless given, the connection and pool attributes of a
+     * datasource are taken from the properties of the bean.
+     */
+    protected void initDataSources() throws ConfigurationException {
+        final Map<String, ReportDataSource> res = new LinkedHashMap<String, ReportDataSource>();
+        dataSources = res;
+        for (Object o : getPersist().getChildren("datasource")) {
+            final Element e = (Element) o;
+            final String name = e.getAttributeValue("name");
+            if (name == null) {
+                throw new ConfigurationException("missing datasource name");
+            }
+            if (res.containsKey(name)) {
+                throw new ConfigurationException("Datasource '" + name + "' already defined");
+            }
+            final String members = e.getAttributeValue("members");
+            if (members != null) {
+                res.put(name, initDataSourceGroup(name, e, members, res));
+                continue;
+            }
+            final String driver = e.getAttributeValue("driver", cfg.get("connection-driver", null));
+            final String url = e.getAttributeValue("url");
+            if (driver == null || url == null) {
+                throw new ConfigurationException(String.format("Missing driver or url in datasource '%s'", name));
+            }
+            final PooledConnectionProvider pool = new PooledConnectionProvider(
+                    driver,
+                    url,
+                    e.getAttributeValue("user", cfg.get("connection-user", null)),
+                    e.getAttributeValue("password", cfg.get("connection-password", null)),
+                    getInt(e, "pool-min-size", cfg.getInt("pool-min-size", 0)),
+                    getInt(e, "pool-max-size", cfg.getInt("pool-max-size", 8)),
+                    e.getAttributeValue("validation-query", cfg.get("pool-validation-query", null)),
+                    getInt(e, "idle-timeout", cfg.getInt("pool-idle-timeout", 300000)),
+                    getInt(e, "max-wait", cfg.getInt("pool-max-wait", 30000)));
+            pool.setPoolPreparedStatements(cfg.getBoolean("pool-prepared-statements", true));
+            res.put(name, pool);
+        }
+    }
+
+    private ReportDataSource initDataSourceGroup(String name, Element e, String members, Map<String, ReportDataSource> defined) throws ConfigurationException {
+        final List<ReportDataSource> group = new ArrayList<ReportDataSource>();
+        for (String member : members.split(",")) {
+            if (member.trim().length() == 0) {
+                continue;
+            }
+            final ReportDataSource ds = defined.get(member.trim());
+            if (ds == null) {
+                throw new ConfigurationException(String.format("Unknown member '%s' of datasource '%s', members must be defined before the group", member.trim(), name));
+            }
+            group.add(ds);
+        }
+        if (group.isEmpty()) {
+            throw new ConfigurationException(String.format("Empty datasource '%s'", name));
+        }
+        final String balance = e.getAttributeValue("balance", ReplicaGroupConnectionProvider.ROUND_ROBIN).trim();
+        if (!ReplicaGroupConnectionProvider.ROUND_ROBIN.equals(balance) && !ReplicaGroupConnectionProvider.LEAST_LOADED.equals(balance)) {
+            throw new ConfigurationException(String.format("Invalid balance '%s' in datasource '%s'", balance, name));
+        }
+        return new ReplicaGroupConnectionProvider(name, group, balance, getInt(e, "retry-interval", 30000));
+    }
+
+    private void loadQuery(PentahoReportDefinition report) {
+        if (report.getSqlFile() == null) {
+            return;
+        }
+        try {
+            sqlRegistry.load(report.getSqlFile());
+        } catch (IOException ex) {
+            getLog().warn(String.format("Unable to load query of report '%s' from %s", report.getName(), report.getSqlFile()), ex);
+        }
+    }
+
+    @Override
+    protected void startService() throws Exception {
+        executor = new ReportExecutor(
+                getName(),
+                cfg.getInt("executor-threads", 2),
+                cfg.getInt("executor-queue-size", 32),
+                cfg.get("executor-rejection-policy", ReportExecutor.POLICY_ABORT));
+        final String name = getName();
+        batchExecutor = Executors.newFixedThreadPool(
+                cfg.getInt("batch-threads", Runtime.getRuntime().availableProcessors()),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, name + "-batch-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pagedReports = new PagedReportSessions(
+                cfg.getLong("paged-session-ttl", 300000L),
+                cfg.getInt("paged-max-sessions", 100));
+        synchronized (reloadLock) {
+            updateSchedules();
+        }
+        final long reloadInterval = cfg.getLong("reload-interval", 0L);
+        if (reloadInterval > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, name + "-reload");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reloader.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        reloadReports();
+                    } catch (Throwable t) {
+                        getLog().warn("Report reload failed", t);
+                    }
+                }
+            }, reloadInterval, reloadInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands the schedules of the current reports to the scheduler, starting
+     * it when the first schedule appears. Called with the reload lock held.
+     */
+    private void updateSchedules() {
+        final List<ReportSchedule> schedules = new ArrayList<ReportSchedule>();
+        for (PentahoReportDefinition r : reports.values()) {
+            schedules.addAll(r.getSchedules());
+        }
+        if (scheduler != null) {
+            scheduler.setSchedules(schedules);
+        } else if (!schedules.isEmpty() && executor != null) {
+            final String queueFile = cfg.get("schedule-queue-file", "log/" + getName() + "-schedule.dat");
+            scheduler = new ReportScheduler(
+                    this,
+                    schedules,
+                    cfg.getInt("schedule-max-concurrent", 2),
+                    queueFile.length() > 0 ? new File(queueFile) : null,
+                    getLog());
+            scheduler.setFileOptions(cfg.getInt("file-buffer-size", AtomicFileOutputStream.DEFAULT_BUFFER_SIZE), cfg.getBoolean("file-sync", false));
+            scheduler.start();
         }
     }
 
     @Override
     protected void stopService() throws Exception {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+        synchronized (reloadLock) {
+            if (scheduler != null) {
+                scheduler.stop();
+                scheduler = null;
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+        if (pagedReports != null) {
+            pagedReports.clear();
+            pagedReports = null;
+        }
         NameRegistrar.unregister(getName());
+        if (templateCache != null) {
+            templateCache.clear();
+        }
+    }
+
+    @Override
+    protected void destroyService() throws Exception {
+        if (resultCache != null) {
+            resultCache.shutdown();
+        }
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+        if (resourceCache != null) {
+            resourceCache.clear();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        for (Map.Entry<String, ReportDataSource> entry : dataSources.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (Exception e) {
+                getLog().warn("Unable to close datasource " + entry.getKey(), e);
+            }
+        }
+        if (resourceManager != null) {
+            resourceManager.shutDown();
+        }
     }
 
+    @Override
+    public long getTemplateCacheHits() {
+        return templateCache != null ? templateCache.getHits() : 0L;
+    }
 
-    private PentahoReportDefinition initReport(Element e) {
+    @Override
+    public long getTemplateCacheMisses() {
+        return templateCache != null ? templateCache.getMisses() : 0L;
+    }
+
+    @Override
+    public int getTemplateCacheSize() {
+        return templateCache != null ? templateCache.size() : 0;
+    }
+
+    @Override
+    public long getResourceCacheHits() {
+        return resourceCache != null ? resourceCache.getHits() : 0L;
+    }
+
+    @Override
+    public long getResourceCacheMisses() {
+        return resourceCache != null ? resourceCache.getMisses() : 0L;
+    }
+
+    @Override
+    public int getResourceCacheSize() {
+        return resourceCache != null ? resourceCache.size() : 0;
+    }
+
+    @Override
+    public int getPoolActive() {
+        return connectionPool != null ? connectionPool.getNumActive() : 0;
+    }
+
+    @Override
+    public int getPoolIdle() {
+        return connectionPool != null ? connectionPool.getNumIdle() : 0;
+    }
+
+    @Override
+    public int getPoolMaxSize() {
+        return connectionPool != null ? connectionPool.getMaxActive() : 0;
+    }
+
+    @Override
+    public int getExecutorActive() {
+        final ReportExecutor e = executor;
+        return e != null ? e.getActiveCount() : 0;
+    }
+
+    @Override
+    public int getExecutorQueueSize() {
+        final ReportExecutor e = executor;
+        return e != null ? e.getQueueSize() : 0;
+    }
+
+    @Override
+    public long getResultCacheHits() {
+        return resultCache != null ? resultCache.getHits() : 0L;
+    }
+
+    @Override
+    public long getResultCacheMisses() {
+        return resultCache != null ? resultCache.getMisses() : 0L;
+    }
+
+    @Override
+    public int getResultCacheSize() {
+        return resultCache != null ? resultCache.size() : 0;
+    }
+
+    @Override
+    public void clearResultCache() {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+    }
+
+    @Override
+    public long getQueryCacheHits() {
+        return queryCache != null ? queryCache.getHits() : 0L;
+    }
+
+    @Override
+    public long getQueryCacheMisses() {
+        return queryCache != null ? queryCache.getMisses() : 0L;
+    }
+
+    @Override
+    public int getQueryCacheSize() {
+        return queryCache != null ? queryCache.size() : 0;
+    }
+
+    @Override
+    public long getQueryCacheMemory() {
+        return queryCache != null ? queryCache.getMemory() : 0L;
+    }
+
+    @Override
+    public long getQueryCacheDisk() {
+        return queryCache != null ? queryCache.getDisk() : 0L;
+    }
+
+    @Override
+    public void clearQueryCache() {
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
+    @Override
+    public long getReportRuns() {
+        return metrics.getRuns();
+    }
+
+    @Override
+    public long getReportFailures() {
+        return metrics.getFailures();
+    }
+
+    @Override
+    public String getReportMetrics() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintStream p = new PrintStream(out);
+        metrics.dump(p, "");
+        p.flush();
+        return out.toString();
+    }
+
+    @Override
+    public void resetReportMetrics() {
+        metrics.reset();
+    }
+
+    @Override
+    public int getScheduledPending() {
+        final ReportScheduler s = scheduler;
+        return s != null ? s.getPendingCount() : 0;
+    }
+
+    @Override
+    public int getScheduledFailed() {
+        final ReportScheduler s = scheduler;
+        return s != null ? s.getFailedCount() : 0;
+    }
+
+    @Override
+    public int retryFailedSchedules() {
+        final ReportScheduler s = scheduler;
+        return s != null ? s.retryFailed() : 0;
+    }
+
+    @Override
+    public int clearFailedSchedules() {
+        final ReportScheduler s = scheduler;
+        return s != null ? s.clearFailed() : 0;
+    }
+
+    @Override
+    public String getScheduler() {
+        final ReportScheduler s = scheduler;
+        if (s == null) {
+            return "";
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintStream p = new PrintStream(out);
+        s.dump(p, "");
+        p.flush();
+        return out.toString();
+    }
+
+    @Override
+    public int getPagedSessions() {
+        final PagedReportSessions sessions = pagedReports;
+        return sessions != null ? sessions.size() : 0;
+    }
+
+    @Override
+    public String getDataSources() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PrintStream p = new PrintStream(out);
+        for (Map.Entry<String, ReportDataSource> entry : dataSources.entrySet()) {
+            final ReportDataSource ds = entry.getValue();
+            if (ds instanceof ReplicaGroupConnectionProvider) {
+                ((ReplicaGroupConnectionProvider) ds).dump(p, "");
+            } else {
+                p.println(String.format("<datasource name=\"%s\" active=\"%d\" idle=\"%d\" max=\"%d\"/>",
+                        entry.getKey(), ds.getNumActive(), ds.getNumIdle(), ds.getMaxActive()));
+            }
+        }
+        p.flush();
+        return out.toString();
+    }
+
+    public ReportDataSource getDataSource(String name) {
+        return dataSources.get(name);
+    }
+
+    public ReportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ReportTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    public ResourceManager getResourceManager() {
+        return resourceManager;
+    }
+
+
+    private PentahoReportDefinition initReport(Element e) throws ConfigurationException {
         final PentahoReportDefinition report = new PentahoReportDefinition();
         report.setName(e.getAttributeValue("name"));
         report.setSqlFile(e.getAttributeValue("sql"));
         report.setReportFile(e.getAttributeValue("report"));
+        report.setMaxConcurrent(getInt(e, "max-concurrent", 0));
+        report.setCacheTtl(getInt(e, "cache-ttl", 0));
+        report.setLiteralParameters(getSet(e, "literal-params"));
+        final String splitColumn = e.getAttributeValue("split-column");
+        report.setSplitColumn(splitColumn != null && splitColumn.trim().length() > 0 ? splitColumn.trim() : null);
+        final String compression = e.getAttributeValue("compression");
+        if (!ReportCompression.isValid(compression)) {
+            throw new ConfigurationException(String.format("Invalid compression '%s' in report '%s'", compression, report.getName()));
+        }
+        report.setCompression(ReportCompression.NONE.equals(compression) ? null : compression);
+        report.setCompressionLevel(getInt(e, "compression-level", -1));
+        if (!ReportCompression.isValidLevel(report.getCompressionLevel())) {
+            throw new ConfigurationException(String.format("Invalid compression-level %d in report '%s'", report.getCompressionLevel(), report.getName()));
+        }
+        report.setChunkSize(getInt(e, "chunk-size", 0));
+        report.setFetchSize(getInt(e, "fetch-size", 0));
+        report.setQueryTimeout(getInt(e, "query-timeout", 0));
+        report.setMaxRows(getInt(e, "max-rows", 0));
+        report.setQueryCacheTtl(getInt(e, "query-cache-ttl", 0));
+        final String dataStore = e.getAttributeValue("data-store", PentahoReportDefinition.DATA_STORE_HEAP).trim();
+        if (!PentahoReportDefinition.DATA_STORE_HEAP.equals(dataStore)
+                && !PentahoReportDefinition.DATA_STORE_DIRECT.equals(dataStore)
+                && !PentahoReportDefinition.DATA_STORE_MAPPED.equals(dataStore)) {
+            throw new ConfigurationException(String.format("Invalid data-store '%s' in report '%s'", dataStore, report.getName()));
+        }
+        report.setDataStore(dataStore);
+        report.setStreamingCursor("true".equalsIgnoreCase(e.getAttributeValue("streaming-cursor")));
+        final String dataSource = e.getAttributeValue("datasource", "").trim();
+        if (dataSource.length() > 0 && !dataSources.containsKey(dataSource)) {
+            throw new ConfigurationException(String.format("Unknown datasource '%s' in report '%s'", dataSource, report.getName()));
+        }
+        report.setDataSource(dataSource.length() > 0 ? dataSource : null);
+        final String warmUp = e.getAttributeValue("warmup", PentahoReportDefinition.WARMUP_NONE).trim();
+        if (!PentahoReportDefinition.WARMUP_NONE.equals(warmUp)
+                && !PentahoReportDefinition.WARMUP_PARSE.equals(warmUp)
+                && !PentahoReportDefinition.WARMUP_RENDER.equals(warmUp)) {
+            throw new ConfigurationException(String.format("Invalid warmup '%s' in report '%s'", warmUp, report.getName()));
+        }
+        report.setWarmUp(warmUp);
+        final List<OutputType> warmUpOutputs = new ArrayList<OutputType>();
+        for (String type : e.getAttributeValue("warmup-output", OutputType.PDF.name()).split(",")) {
+            if (type.trim().length() == 0) {
+                continue;
+            }
+            final OutputType outputType;
+            try {
+                outputType = OutputType.valueOf(type.trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new ConfigurationException(String.format("Invalid warmup-output '%s' in report '%s'", type, report.getName()), ex);
+            }
+            if (!outputType.isStreamed()) {
+                warmUpOutputs.add(outputType);
+            }
+        }
+        report.setWarmUpOutputs(warmUpOutputs);
+        report.setWarmUpRows(getInt(e, "warmup-rows", 0));
+        final List<ReportSchedule> schedules = new ArrayList<ReportSchedule>();
+        for (Object o : e.getChildren("schedule")) {
+            schedules.add(initSchedule(report.getName(), (Element) o));
+        }
+        report.setSchedules(schedules);
         return report;
     }
+
+    private ReportSchedule initSchedule(String report, Element e) throws ConfigurationException {
+        final CronExpression cron;
+        final OutputType outputType;
+        try {
+            cron = new CronExpression(e.getAttributeValue("cron", ""));
+            outputType = OutputType.valueOf(e.getAttributeValue("output", "PDF").trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException(String.format("Invalid schedule in report '%s': %s", report, ex.getMessage()), ex);
+        }
+        final String destination = e.getAttributeValue("destination");
+        if (destination == null) {
+            throw new ConfigurationException(String.format("Missing schedule destination in report '%s'", report));
+        }
+        final ReportSchedule schedule = new ReportSchedule(report, cron, outputType, destination);
+        final Map<String, String> parameters = new HashMap<String, String>();
+        for (Object o : e.getChildren("param")) {
+            final Element p = (Element) o;
+            parameters.put(p.getAttributeValue("name"), p.getAttributeValue("value", p.getTextTrim()));
+        }
+        schedule.setParameters(parameters);
+        schedule.setJitter(getInt(e, "jitter", cfg.getInt("schedule-jitter", 60)));
+        schedule.setRetries(getInt(e, "retries", cfg.getInt("schedule-retries", 3)));
+        schedule.setBackoff(getInt(e, "backoff", cfg.getInt("schedule-backoff", 60000)));
+        return schedule;
+    }
+
+    private Set<String> getSet(Element e, String attribute) {
+        final String value = e.getAttributeValue(attribute);
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> res = new HashSet<String>();
+        for (String s : value.split(",")) {
+            if (s.trim().length() > 0) {
+                res.add(s.trim());
+            }
+        }
+        return res;
+    }
+
+    private int getInt(Element e, String attribute, int defaultValue) throws ConfigurationException {
+        final String value = e.getAttributeValue(attribute);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new ConfigurationException(String.format("Invalid %s '%s' in report '%s'", attribute, value, e.getAttributeValue("name")), ex);
+        }
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import org.jpos.q2.QBeanSupportMBean;
+
+/**
+ *
+ * @author jpaoletti
+ */
+public interface PentahoQBeanMBean extends QBeanSupportMBean {
+
+    public long getTemplateCacheHits();
+
+    public long getTemplateCacheMisses();
+
+    public int getTemplateCacheSize();
+
+    public long getResourceCacheHits();
+
+    public long getResourceCacheMisses();
+
+    public int getResourceCacheSize();
+
+    public int getPoolActive();
+
+    public int getPoolIdle();
+
+    public int getPoolMaxSize();
+
+    public int getExecutorActive();
+
+    public int getExecutorQueueSize();
+
+    public long getResultCacheHits();
+
+    public long getResultCacheMisses();
+
+    public int getResultCacheSize();
+
+    public void clearResultCache();
+
+    public long getQueryCacheHits();
+
+    public long getQueryCacheMisses();
+
+    public int getQueryCacheSize();
+
+    public long getQueryCacheMemory();
+
+    public long getQueryCacheDisk();
+
+    public void clearQueryCache();
+
+    public long getReportRuns();
+
+    public long getReportFailures();
+
+    public String getReportMetrics();
+
+    public void resetReportMetrics();
+
+    public int getScheduledPending();
+
+    public int getScheduledFailed();
+
+    public int retryFailedSchedules();
+
+    public int clearFailedSchedules();
+
+    public String getScheduler();
+
+    public int getPagedSessions();
+
+    public String getDataSources();
+
+    public int reloadReports();
+}
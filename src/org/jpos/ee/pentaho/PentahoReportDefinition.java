@@ -17,15 +17,44 @@
  */
 package org.jpos.ee.pentaho;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 /**
  *
  * @author jpaoletti
  */
 public class PentahoReportDefinition {
 
+    public static final String DATA_STORE_HEAP = "heap";
+    public static final String DATA_STORE_DIRECT = "direct";
+    public static final String DATA_STORE_MAPPED = "mapped";
+    public static final String WARMUP_NONE = "none";
+    public static final String WARMUP_PARSE = "parse";
+    public static final String WARMUP_RENDER = "render";
+
     private String name;
     private String sqlFile;
     private String reportFile;
+    private int maxConcurrent;
+    private int cacheTtl;
+    private Set<String> literalParameters = Collections.emptySet();
+    private String splitColumn;
+    private List<ReportSchedule> schedules = Collections.emptyList();
+    private String compression;
+    private int compressionLevel = -1;
+    private long chunkSize;
+    private int fetchSize;
+    private int queryTimeout;
+    private int maxRows;
+    private boolean streamingCursor;
+    private int queryCacheTtl;
+    private String dataStore = DATA_STORE_HEAP;
+    private String dataSource;
+    private String warmUp = WARMUP_NONE;
+    private List<OutputType> warmUpOutputs = Collections.emptyList();
+    private int warmUpRows;
 
     public String getName() {
         return name;
@@ -50,4 +79,239 @@ public class PentahoReportDefinition {
     public void setSqlFile(String sqlFile) {
         this.sqlFile = sqlFile;
     }
+
+    /**
+     * @return maximum number of concurrent asynchronous runs of this report,
+     * 0 means no limit
+     */
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * @return seconds a rendered report is kept in the result cache, 0 if
+     * this report is not cached
+     */
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(int cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * @return names (without the SQL_ prefix) of the query placeholders that
+     * are replaced as text instead of being bound
+     */
+    public Set<String> getLiteralParameters() {
+        return literalParameters;
+    }
+
+    public void setLiteralParameters(Set<String> literalParameters) {
+        this.literalParameters = literalParameters;
+    }
+
+    /**
+     * @return column used to split the query result into one report per
+     * value, <code>null</code> if the report is not split
+     */
+    public String getSplitColumn() {
+        return splitColumn;
+    }
+
+    public void setSplitColumn(String splitColumn) {
+        this.splitColumn = splitColumn;
+    }
+
+    public List<ReportSchedule> getSchedules() {
+        return schedules;
+    }
+
+    public void setSchedules(List<ReportSchedule> schedules) {
+        this.schedules = schedules;
+    }
+
+    /**
+     * @return <code>gzip</code>, <code>zip</code> or <code>null</code>
+     * @see ReportCompression
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return deflate level, -1 for the default
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return maximum size of each part of the output written to a sink, 0
+     * to write it whole
+     * @see ChunkingSink
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return JDBC fetch size of the report query, 0 for the default
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return report query timeout in seconds, 0 for no timeout
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @return maximum number of rows read by the report query, 0 for no limit
+     */
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * @return true if the report query is read with a forward only cursor
+     * @see BoundSQLReportDataFactory#setStreamingCursor(boolean)
+     */
+    public boolean isStreamingCursor() {
+        return streamingCursor;
+    }
+
+    public void setStreamingCursor(boolean streamingCursor) {
+        this.streamingCursor = streamingCursor;
+    }
+
+    /**
+     * @return seconds the query results are kept in the query cache, 0 to
+     * not cache them
+     */
+    public int getQueryCacheTtl() {
+        return queryCacheTtl;
+    }
+
+    public void setQueryCacheTtl(int queryCacheTtl) {
+        this.queryCacheTtl = queryCacheTtl;
+    }
+
+    /**
+     * @return where the query result is kept while the report is rendered:
+     * <code>heap</code>, or off the heap in <code>direct</code> buffers or a
+     * <code>mapped</code> file
+     * @see OffHeapTableModel
+     */
+    public String getDataStore() {
+        return dataStore;
+    }
+
+    public void setDataStore(String dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    /**
+     * @return name of the datasource the query is run on, <code>null</code>
+     * for the default connection
+     */
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @return what is done with the report when the bean starts:
+     * <code>none</code>, <code>parse</code> its template and query, or also
+     * <code>render</code> it
+     */
+    public String getWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(String warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * @return output types rendered on warm-up
+     */
+    public List<OutputType> getWarmUpOutputs() {
+        return warmUpOutputs;
+    }
+
+    public void setWarmUpOutputs(List<OutputType> warmUpOutputs) {
+        this.warmUpOutputs = warmUpOutputs;
+    }
+
+    /**
+     * @return rows of the query rendered on warm-up, 0 to render without data
+     */
+    public int getWarmUpRows() {
+        return warmUpRows;
+    }
+
+    public void setWarmUpRows(int warmUpRows) {
+        this.warmUpRows = warmUpRows;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PentahoReportDefinition)) {
+            return false;
+        }
+        final PentahoReportDefinition other = (PentahoReportDefinition) obj;
+        return eq(name, other.name) && eq(sqlFile, other.sqlFile) && eq(reportFile, other.reportFile);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 31 * hash + (name != null ? name.hashCode() : 0);
+        hash = 31 * hash + (sqlFile != null ? sqlFile.hashCode() : 0);
+        hash = 31 * hash + (reportFile != null ? reportFile.hashCode() : 0);
+        return hash;
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
 }
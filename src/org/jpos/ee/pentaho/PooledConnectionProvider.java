@@ -0,0 +1,125 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.jpos.ee.pentaho.exception.PoolExhaustedException;
+
+/**
+ * Connection provider backed by a commons-dbcp pool. The pool lives as long
+ * as the {@link PentahoQBean} that created it; connections are returned to it
+ * when the data factory closes them at the end of each report.
+ *
+ * @author jpaoletti
+ */
+public class PooledConnectionProvider implements ReportDataSource {
+
+    private static final long serialVersionUID = 1L;
+    private final transient BasicDataSource dataSource;
+    private final String driver;
+    private final String url;
+
+    public PooledConnectionProvider(
+            String driver, String url, String user, String password,
+            int minSize, int maxSize, String validationQuery, long idleTimeout, long maxWait) {
+        this.driver = driver;
+        this.url = url;
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(driver);
+        dataSource.setUrl(url);
+        dataSource.setUsername(user);
+        dataSource.setPassword(password);
+        dataSource.setInitialSize(minSize);
+        dataSource.setMinIdle(minSize);
+        dataSource.setMaxIdle(maxSize);
+        dataSource.setMaxActive(maxSize);
+        dataSource.setMaxWait(maxWait);
+        dataSource.setDefaultReadOnly(true);
+        if (validationQuery != null) {
+            dataSource.setValidationQuery(validationQuery);
+            dataSource.setTestOnBorrow(true);
+        }
+        if (idleTimeout > 0) {
+            dataSource.setMinEvictableIdleTimeMillis(idleTimeout);
+            dataSource.setTimeBetweenEvictionRunsMillis(Math.max(1000L, idleTimeout / 2));
+        }
+    }
+
+    /**
+     * @throws PoolExhaustedException if all the connections are in use
+     */
+    @Override
+    public Connection createConnection(String user, String password) throws SQLException {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            if (e.getCause() instanceof NoSuchElementException && dataSource.getNumActive() >= dataSource.getMaxActive()) {
+                throw new PoolExhaustedException("Pool exhausted: " + url, e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection tryConnection(String user, String password) throws SQLException {
+        if (dataSource.getMaxActive() > 0 && dataSource.getNumActive() >= dataSource.getMaxActive()) {
+            throw new PoolExhaustedException("Pool exhausted: " + url, null);
+        }
+        return createConnection(user, password);
+    }
+
+    /**
+     * Keeps prepared statements open per pooled connection, so the same
+     * report query is not prepared again on every run.
+     */
+    public void setPoolPreparedStatements(boolean poolPreparedStatements) {
+        dataSource.setPoolPreparedStatements(poolPreparedStatements);
+    }
+
+    @Override
+    public String getDriver() {
+        return driver;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public int getNumActive() {
+        return dataSource.getNumActive();
+    }
+
+    @Override
+    public int getNumIdle() {
+        return dataSource.getNumIdle();
+    }
+
+    @Override
+    public int getMaxActive() {
+        return dataSource.getMaxActive();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableModel;
+import org.pentaho.reporting.engine.classic.core.util.CloseableTableModel;
+
+/**
+ * Cache of query results shared by all the reports and output types of a
+ * QBean. Results are keyed by the SQL and the values bound to it, so the same
+ * query feeds several renders without hitting the database again.
+ * <p/>
+ * Each result is copied into an immutable column oriented table. Results
+ * estimated over <code>maxEntryMemory</code> bytes are spilled instead to an
+ * {@link OffHeapTableModel} stored in a memory mapped file, with primitive
+ * and dictionary encoded columns that are read in place on each hit. Spilled
+ * results are handed out as leases that release them when the report closes
+ * its data, so a result evicted or expired while in use is only closed once
+ * its last report is done. The heap and the mapped files are bounded,
+ * evicting the least recently used results, and each result expires after
+ * the ttl of its report.
+ *
+ * @author jpaoletti
+ */
+public class QueryResultCache {
+
+    private final long maxMemory;
+    private final long maxEntryMemory;
+    private final long maxDisk;
+    private final File dir;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memory;
+    private long disk;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxMemory heap used by all the cached results, in bytes
+     * @param maxEntryMemory results estimated over this size are spilled
+     * @param dir directory of the spilled results, <code>null</code> for the
+     * default temporary directory
+     * @param maxDisk size of all the spilled results, in bytes, 0 to not
+     * cache the results over <code>maxEntryMemory</code>
+     */
+    public QueryResultCache(long maxMemory, long maxEntryMemory, File dir, long maxDisk) {
+        this.maxMemory = maxMemory;
+        this.maxEntryMemory = maxEntryMemory;
+        this.dir = dir;
+        this.maxDisk = maxDisk;
+    }
+
+    /**
+     * Builds the key of a query. Values are sorted by name.
+     */
+    public static String key(String sql, Map<String, Object> values) {
+        final StringBuilder sb = new StringBuilder(sql).append('\n');
+        for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(values).entrySet()) {
+            sb.append(entry.getKey()).append('=');
+            final Object value = entry.getValue();
+            if (value instanceof Object[]) {
+                sb.append(Arrays.deepToString((Object[]) value));
+            } else if (value instanceof Date) {
+                sb.append(((Date) value).getTime());
+            } else {
+                sb.append(value);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Spilled results are returned as a {@link CloseableTableModel} that has
+     * to be closed once read.
+     *
+     * @return the cached result or <code>null</code>
+     */
+    public TableModel get(String key) {
+        TableModel res = null;
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+            } else if (entry != null) {
+                res = entry.table != null ? entry.table : lease(entry);
+            }
+        }
+        if (res == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return res;
+    }
+
+    /**
+     * Copies the result and caches the copy, on the heap or, if it is
+     * estimated over the entry size, spilled to a mapped file. When a copy is
+     * returned the result was fully read, so it may be closed afterwards.
+     *
+     * @param key the query key
+     * @param result the query result
+     * @param ttl time to live in seconds
+     * @return the copy to be used instead of the result, to be closed if it
+     * is a {@link CloseableTableModel}, or the result itself if it is too big
+     * to be cached
+     */
+    public TableModel put(String key, TableModel result, int ttl) {
+        final long size = ColumnTable.estimateSize(result);
+        final Entry entry = new Entry();
+        entry.expires = System.currentTimeMillis() + ttl * 1000L;
+        if (size <= maxEntryMemory && size <= maxMemory) {
+            entry.table = new ColumnTable(result);
+            entry.size = size;
+        } else if (maxDisk > 0) {
+            try {
+                entry.spilled = new OffHeapTableModel(result, true, dir);
+            } catch (IOException e) {
+                return result;
+            }
+            entry.size = entry.spilled.getStoreSize();
+            if (entry.size > maxDisk) {
+                entry.spilled.close();
+                return result;
+            }
+        } else {
+            return result;
+        }
+        synchronized (this) {
+            remove(key);
+            entries.put(key, entry);
+            entry.refs = 1;
+            if (entry.table != null) {
+                memory += entry.size;
+            } else {
+                disk += entry.size;
+            }
+            final TableModel res = entry.table != null ? entry.table : lease(entry);
+            evict();
+            return res;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            release(it.next());
+            it.remove();
+        }
+        memory = 0L;
+        disk = 0L;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated heap used by the cached results
+     */
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return size of the spilled results
+     */
+    public synchronized long getDisk() {
+        return disk;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void remove(String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            drop(entry);
+        }
+    }
+
+    /**
+     * Removes expired results, then the least recently used ones until the
+     * heap and disk limits are met
+     */
+    private void evict() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (entry.expires < now || (entry.table != null ? memory > maxMemory : disk > maxDisk)) {
+                it.remove();
+                drop(entry);
+            }
+        }
+    }
+
+    /**
+     * Accounts for an entry removed from the map and releases the reference
+     * of the cache
+     */
+    private void drop(Entry entry) {
+        if (entry.table != null) {
+            memory -= entry.size;
+        } else {
+            disk -= entry.size;
+        }
+        release(entry);
+    }
+
+    private Lease lease(Entry entry) {
+        entry.refs++;
+        return new Lease(entry);
+    }
+
+    /**
+     * Closes a spilled result once neither the cache nor a report uses it
+     */
+    private synchronized void release(Entry entry) {
+        if (entry.spilled != null && --entry.refs == 0) {
+            entry.spilled.close();
+        }
+    }
+
+    private static class Entry {
+
+        private ColumnTable table;
+        private OffHeapTableModel spilled;
+        private int refs;
+        private long size;
+        private long expires;
+    }
+
+    /**
+     * A use of a spilled result, released when closed
+     */
+    private class Lease extends AbstractTableModel implements CloseableTableModel {
+
+        private static final long serialVersionUID = 1L;
+        private final transient Entry entry;
+        private final transient OffHeapTableModel table;
+        private volatile boolean closed;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+            this.table = entry.spilled;
+        }
+
+        @Override
+        public int getRowCount() {
+            return table.getRowCount();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return table.getColumnCount();
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return table.getColumnName(column);
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return table.getColumnClass(column);
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            if (closed) {
+                throw new IllegalStateException("Query result closed");
+            }
+            return table.getValueAt(row, column);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Immutable copy of a table model, stored by column
+     */
+    static class ColumnTable extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+        private final String[] names;
+        private final Class[] types;
+        private final Object[][] columns;
+        private final int rows;
+
+        ColumnTable(TableModel model) {
+            rows = model.getRowCount();
+            names = new String[model.getColumnCount()];
+            types = new Class[names.length];
+            columns = new Object[names.length][];
+            for (int c = 0; c < names.length; c++) {
+                names[c] = model.getColumnName(c);
+                types[c] = model.getColumnClass(c);
+                final Object[] column = new Object[rows];
+                for (int r = 0; r < rows; r++) {
+                    column[r] = model.getValueAt(r, c);
+                }
+                columns[c] = column;
+            }
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return names.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return names[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return types[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return columns[column][row];
+        }
+
+        /**
+         * @return rough heap size of a copy of the values, in bytes
+         */
+        static long estimateSize(TableModel model) {
+            final int rows = model.getRowCount();
+            long size = 64L;
+            for (int c = 0; c < model.getColumnCount(); c++) {
+                size += 16L + 4L * rows;
+                for (int r = 0; r < rows; r++) {
+                    final Object value = model.getValueAt(r, c);
+                    if (value instanceof String) {
+                        size += 40L + 2L * ((String) value).length();
+                    } else if (value != null) {
+                        size += 24L;
+                    }
+                }
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jpos.ee.pentaho.exception.PoolExhaustedException;
+import org.jpos.util.Loggeable;
+
+/**
+ * Group of datasources holding the same data, typically read replicas.
+ * <p/>
+ * Each connection is taken from a member chosen in turn
+ * (<code>round-robin</code>) or from the one with fewer active connections
+ * (<code>least-loaded</code>). When a member fails to give a connection the
+ * next member is tried; unless the failure was only its pool being exhausted,
+ * it is also marked down and skipped for <code>retryInterval</code> ms. The
+ * members marked down are tried last, before giving up.
+ * <p/>
+ * Members are tried without waiting on their pools. Only when every member is
+ * busy or down does the request wait, on the last busy member, so it never
+ * waits longer than a single pool's max-wait.
+ *
+ * @author jpaoletti
+ */
+public class ReplicaGroupConnectionProvider implements ReportDataSource, Loggeable {
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_LOADED = "least-loaded";
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final transient List<ReportDataSource> members;
+    private final transient AtomicLong[] downUntil;
+    private final boolean leastLoaded;
+    private final long retryInterval;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * @param name group name
+     * @param members datasources of the group
+     * @param balance <code>round-robin</code> or <code>least-loaded</code>
+     * @param retryInterval ms a failed member is skipped
+     */
+    public ReplicaGroupConnectionProvider(String name, List<ReportDataSource> members, String balance, long retryInterval) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("Empty datasource group " + name);
+        }
+        this.name = name;
+        this.members = members;
+        this.leastLoaded = LEAST_LOADED.equals(balance);
+        this.retryInterval = retryInterval;
+        this.downUntil = new AtomicLong[members.size()];
+        for (int i = 0; i < downUntil.length; i++) {
+            downUntil[i] = new AtomicLong();
+        }
+    }
+
+    @Override
+    public Connection createConnection(String user, String password) throws SQLException {
+        return connect(user, password, true);
+    }
+
+    @Override
+    public Connection tryConnection(String user, String password) throws SQLException {
+        return connect(user, password, false);
+    }
+
+    private Connection connect(String user, String password, boolean wait) throws SQLException {
+        SQLException error = null;
+        int busy = -1;
+        for (int member : order()) {
+            try {
+                return connect(member, user, password, false);
+            } catch (PoolExhaustedException e) {
+                busy = member;
+                error = e;
+            } catch (SQLException e) {
+                error = e;
+            }
+        }
+        if (wait && busy >= 0) {
+            return connect(busy, user, password, true);
+        }
+        throw error != null ? error : new SQLException("No datasource available in group " + name);
+    }
+
+    private Connection connect(int member, String user, String password, boolean wait) throws SQLException {
+        final ReportDataSource dataSource = members.get(member);
+        try {
+            final Connection conn = wait
+                    ? dataSource.createConnection(user, password)
+                    : dataSource.tryConnection(user, password);
+            downUntil[member].set(0L);
+            return conn;
+        } catch (PoolExhaustedException e) {
+            failovers.incrementAndGet();
+            throw e;
+        } catch (SQLException e) {
+            downUntil[member].set(System.currentTimeMillis() + retryInterval);
+            failovers.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the members to try, starting from the preferred one, with the
+     * members marked down last
+     */
+    private int[] order() {
+        final int first = first();
+        final long now = System.currentTimeMillis();
+        final boolean[] down = new boolean[members.size()];
+        for (int i = 0; i < down.length; i++) {
+            down[i] = downUntil[i].get() > now;
+        }
+        final int[] res = new int[members.size()];
+        int n = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < res.length; i++) {
+                final int member = (first + i) % res.length;
+                if (down[member] == (pass == 1)) {
+                    res[n++] = member;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the preferred member
+     */
+    private int first() {
+        if (!leastLoaded) {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % members.size();
+        }
+        final long now = System.currentTimeMillis();
+        int best = -1;
+        int load = Integer.MAX_VALUE;
+        for (int i = 0; i < members.size(); i++) {
+            final int active = members.get(i).getNumActive();
+            if (downUntil[i].get() <= now && active < load) {
+                best = i;
+                load = active;
+            }
+        }
+        return best >= 0 ? best : 0;
+    }
+
+    /**
+     * @return true if the member is not marked down
+     */
+    public boolean isAvailable(int member) {
+        return downUntil[member].get() <= System.currentTimeMillis();
+    }
+
+    public List<ReportDataSource> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return times a member failed to give a connection
+     */
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public String getDriver() {
+        return members.get(0).getDriver();
+    }
+
+    @Override
+    public int getNumActive() {
+        int res = 0;
+        for (ReportDataSource member : members) {
+            res += member.getNumActive();
+        }
+        return res;
+    }
+
+    @Override
+    public int getNumIdle() {
+        int res = 0;
+        for (ReportDataSource member : members) {
+            res += member.getNumIdle();
+        }
+        return res;
+    }
+
+    @Override
+    public int getMaxActive() {
+        int res = 0;
+        for (ReportDataSource member : members) {
+            res += member.getMaxActive();
+        }
+        return res;
+    }
+
+    /**
+     * Does nothing, members are closed on their own
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(String.format("%s<group name=\"%s\" balance=\"%s\" failovers=\"%d\">",
+                indent, name, leastLoaded ? LEAST_LOADED : ROUND_ROBIN, getFailovers()));
+        for (int i = 0; i < members.size(); i++) {
+            final ReportDataSource member = members.get(i);
+            p.println(String.format("%s  <member index=\"%d\" available=\"%s\" active=\"%d\" idle=\"%d\"/>",
+                    indent, i, isAvailable(i), member.getNumActive(), member.getNumIdle()));
+        }
+        p.println(indent + "</group>");
+    }
+}
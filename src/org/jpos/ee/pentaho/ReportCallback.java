@@ -0,0 +1,37 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.OutputStream;
+
+/**
+ * Receives the outcome of a report submitted to {@link PentahoQBean#submit}.
+ * Methods are called from the report worker thread.
+ *
+ * @author jpaoletti
+ */
+public interface ReportCallback {
+
+    public void completed(String report, OutputType outputType, OutputStream out);
+
+    /**
+     * @param cause the failure, a {@link java.util.concurrent.CancellationException}
+     * if the run was cancelled
+     */
+    public void failed(String report, OutputType outputType, Throwable cause);
+}
@@ -0,0 +1,92 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streaming compression of report outputs, applied while the report is
+ * rendered so the output is not read back to be compressed.
+ *
+ * @author jpaoletti
+ */
+public final class ReportCompression {
+
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String ZIP = "zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ReportCompression() {
+    }
+
+    public static boolean isValid(String compression) {
+        return compression == null || NONE.equals(compression) || GZIP.equals(compression) || ZIP.equals(compression);
+    }
+
+    /**
+     * Wraps the output in a compressing stream. The returned stream must be
+     * finished, not closed, to leave the output open.
+     *
+     * @param out compressed output
+     * @param compression <code>gzip</code> or <code>zip</code>
+     * @param level deflate level, 0-9 or -1 for the default
+     * @param entryName name of the zip entry
+     * @return the compressing stream, <code>null</code> if there is no
+     * compression
+     */
+    public static DeflaterOutputStream wrap(OutputStream out, String compression, final int level, String entryName) throws IOException {
+        if (GZIP.equals(compression)) {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+
+                {
+                    def.setLevel(level);
+                }
+            };
+        } else if (ZIP.equals(compression)) {
+            final ZipOutputStream zip = new ZipOutputStream(out);
+            zip.setLevel(level);
+            zip.putNextEntry(new ZipEntry(entryName));
+            return zip;
+        }
+        return null;
+    }
+
+    /**
+     * @return the extension of a compressed file, without the dot, or
+     * <code>null</code> if there is no compression
+     */
+    public static String getExtension(String compression) {
+        if (GZIP.equals(compression)) {
+            return "gz";
+        } else if (ZIP.equals(compression)) {
+            return "zip";
+        }
+        return null;
+    }
+
+    static boolean isValidLevel(int level) {
+        return level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.ConnectionProvider;
+
+/**
+ * A datasource declared in the {@link PentahoQBean}: a connection pool or a
+ * group of them.
+ *
+ * @author jpaoletti
+ */
+public interface ReportDataSource extends ConnectionProvider {
+
+    /**
+     * @return JDBC driver class of the datasource
+     */
+    public String getDriver();
+
+    /**
+     * Like {@link #createConnection(String, String)}, but fails instead of
+     * waiting for a connection to be returned when all of them are in use.
+     *
+     * @throws org.jpos.ee.pentaho.exception.PoolExhaustedException if all
+     * the connections are in use
+     */
+    public Connection tryConnection(String user, String password) throws SQLException;
+
+    public int getNumActive();
+
+    public int getNumIdle();
+
+    public int getMaxActive();
+
+    public void close() throws SQLException;
+}
@@ -0,0 +1,241 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jpos.ee.pentaho.exception.ReportRejectedException;
+
+/**
+ * Bounded worker pool used to run reports outside of the caller thread.
+ * <p/>
+ * The pool has a fixed number of threads and a bounded queue. When the queue
+ * is full the run is either rejected or, with the <code>caller-runs</code>
+ * policy, executed on the submitting thread. Each report may also define a
+ * maximum number of concurrent runs (queued or running); runs over that limit
+ * are always rejected.
+ *
+ * @author jpaoletti
+ */
+public class ReportExecutor {
+
+    public static final String POLICY_ABORT = "abort";
+    public static final String POLICY_CALLER_RUNS = "caller-runs";
+    private final ThreadPoolExecutor executor;
+    private final boolean callerRuns;
+    private final Map<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+    public ReportExecutor(final String name, int threads, int queueSize, String rejectionPolicy) {
+        this.callerRuns = POLICY_CALLER_RUNS.equalsIgnoreCase(rejectionPolicy);
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, name + "-report-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues the generation of a report.
+     *
+     * @param definition the report definition, used for the concurrency limit
+     * @param generator a fully configured generator
+     * @param outputType the output type
+     * @param out where the report is written. It is not closed.
+     * @param callback optional callback notified when the run ends
+     * @return a future for the given output stream. Cancelling it interrupts
+     * the report processing.
+     * @throws ReportRejectedException if the queue or the report concurrency
+     * limit is full
+     */
+    public Future<OutputStream> submit(
+            final PentahoReportDefinition definition,
+            final AbstractReportGenerator generator,
+            final OutputType outputType,
+            final OutputStream out,
+            final ReportCallback callback) throws ReportRejectedException {
+        final Semaphore permit = getPermit(definition);
+        if (permit != null && !permit.tryAcquire()) {
+            throw new ReportRejectedException(String.format("Report '%s' has reached its limit of %d concurrent runs", definition.getName(), definition.getMaxConcurrent()));
+        }
+        final ReportTask task = new ReportTask(definition.getName(), outputType, permit, callback, new Callable<OutputStream>() {
+
+            @Override
+            public OutputStream call() throws Exception {
+                return generator.generateReport(outputType, out);
+            }
+        });
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (callerRuns && !executor.isShutdown()) {
+                task.run();
+            } else {
+                task.releasePermit();
+                throw new ReportRejectedException(String.format("Report '%s' rejected, executor queue is full", definition.getName()), e);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Drops the concurrency limit of a report, so a redefined report gets
+     * its new limit. Runs in progress release the old one.
+     */
+    public void reset(String report) {
+        synchronized (permits) {
+            permits.remove(report);
+        }
+    }
+
+    /**
+     * Interrupts the running reports and cancels the queued ones, so their
+     * callbacks are notified and their futures do not wait forever.
+     */
+    public void shutdown() {
+        for (Runnable r : executor.shutdownNow()) {
+            if (r instanceof ReportTask) {
+                final ReportTask task = (ReportTask) r;
+                task.cancel(false);
+                task.releasePermit();
+            }
+        }
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    private Semaphore getPermit(PentahoReportDefinition definition) {
+        if (definition.getMaxConcurrent() <= 0) {
+            return null;
+        }
+        synchronized (permits) {
+            Semaphore permit = permits.get(definition.getName());
+            if (permit == null) {
+                permit = new Semaphore(definition.getMaxConcurrent());
+                permits.put(definition.getName(), permit);
+            }
+            return permit;
+        }
+    }
+
+    /**
+     * The concurrency permit is released when the report stops running, not
+     * when it is cancelled, as a cancelled report may still be rendering
+     * until it notices the interruption.
+     */
+    private static class ReportTask extends FutureTask<OutputStream> {
+
+        private final String report;
+        private final OutputType outputType;
+        private final AtomicBoolean permitHeld;
+        private final Semaphore permit;
+        private final ReportCallback callback;
+
+        ReportTask(String report, OutputType outputType, final Semaphore permit, ReportCallback callback, final Callable<OutputStream> callable) {
+            this(report, outputType, permit, callback, callable, new AtomicBoolean(permit != null));
+        }
+
+        private ReportTask(String report, OutputType outputType, final Semaphore permit, ReportCallback callback, final Callable<OutputStream> callable, final AtomicBoolean permitHeld) {
+            super(new Callable<OutputStream>() {
+
+                @Override
+                public OutputStream call() throws Exception {
+                    try {
+                        return callable.call();
+                    } finally {
+                        if (permitHeld.compareAndSet(true, false)) {
+                            permit.release();
+                        }
+                    }
+                }
+            });
+            this.report = report;
+            this.outputType = outputType;
+            this.permit = permit;
+            this.permitHeld = permitHeld;
+            this.callback = callback;
+        }
+
+        /**
+         * Releases the permit of a task that will never run
+         */
+        void releasePermit() {
+            if (permitHeld.compareAndSet(true, false)) {
+                permit.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            super.run();
+            // cancelled before it started, the callable never ran
+            if (isCancelled()) {
+                releasePermit();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null) {
+                return;
+            }
+            try {
+                callback.completed(report, outputType, get());
+            } catch (CancellationException e) {
+                callback.failed(report, outputType, e);
+            } catch (ExecutionException e) {
+                callback.failed(report, outputType, e.getCause());
+            } catch (InterruptedException e) {
+                callback.failed(report, outputType, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import org.jpos.util.Loggeable;
+import org.pentaho.reporting.engine.classic.core.modules.output.support.itext.BaseFontModule;
+import org.pentaho.reporting.libraries.fonts.itext.ITextFontRegistry;
+
+/**
+ * Loads the font registry used by the PDF output once, when the
+ * {@link PentahoQBean} starts, instead of on the first PDF report.
+ * <p/>
+ * LibFonts keeps the index of the scanned font files in
+ * <code>~/.pentaho/caches/libfonts</code>, and only parses the fonts that
+ * are not in it. Containers usually start with an empty home, so with an
+ * index directory the index files are copied from it before the scan and
+ * back to it after, and a persistent volume keeps the index between runs.
+ *
+ * @author jpaoletti
+ */
+public class ReportFontRegistry implements Loggeable {
+
+    private static final FileFilter INDEX_FILES = new FileFilter() {
+
+        @Override
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(".ser");
+        }
+    };
+    private final File indexDir;
+    private int restored;
+    private int saved;
+    private int families;
+    private long elapsed;
+
+    /**
+     * @param indexDir where the font index is kept between runs, may be
+     * <code>null</code>
+     */
+    public ReportFontRegistry(File indexDir) {
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * Restores the index, loads the registry and saves the index
+     *
+     * @return the registry shared by the PDF outputs
+     */
+    public ITextFontRegistry load() throws IOException {
+        final long start = System.currentTimeMillis();
+        final File cacheDir = getCacheDir();
+        if (indexDir != null && cacheDir != null) {
+            restored = copy(indexDir, cacheDir);
+        }
+        final ITextFontRegistry registry = BaseFontModule.getFontRegistry();
+        families = registry.getRegisteredFamilies().length;
+        if (indexDir != null && cacheDir != null) {
+            saved = copy(cacheDir, indexDir);
+        }
+        elapsed = System.currentTimeMillis() - start;
+        return registry;
+    }
+
+    /**
+     * @return the directory where LibFonts keeps its index
+     */
+    public static File getCacheDir() {
+        final String home = System.getProperty("user.home");
+        return home != null ? new File(home, ".pentaho/caches/libfonts") : null;
+    }
+
+    /**
+     * Copies the index files of one directory missing or older in the other
+     *
+     * @return number of files copied
+     */
+    private static int copy(File from, File to) throws IOException {
+        final File[] files = from.listFiles(INDEX_FILES);
+        if (files == null) {
+            return 0;
+        }
+        int res = 0;
+        for (File file : files) {
+            final File target = new File(to, file.getName());
+            if (target.exists() && target.lastModified() >= file.lastModified()) {
+                continue;
+            }
+            if (!to.isDirectory() && !to.mkdirs()) {
+                throw new IOException("Unable to create " + to);
+            }
+            final AtomicFileOutputStream out = new AtomicFileOutputStream(target, AtomicFileOutputStream.DEFAULT_BUFFER_SIZE, false);
+            final InputStream in = new FileInputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                out.close();
+            } catch (IOException e) {
+                out.abort();
+                throw e;
+            } finally {
+                in.close();
+            }
+            target.setLastModified(file.lastModified());
+            res++;
+        }
+        return res;
+    }
+
+    public int getFamilies() {
+        return families;
+    }
+
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(String.format("%s<fonts families=\"%d\" elapsed=\"%d\" restored=\"%d\" saved=\"%d\"%s/>",
+                indent, families, elapsed, restored, saved, indexDir != null ? " index=\"" + indexDir + "\"" : ""));
+    }
+}
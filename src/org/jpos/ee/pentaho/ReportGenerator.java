@@ -25,4 +25,9 @@ public interface ReportGenerator {
     public File generateReport(
             final OutputType outputType,
             final String outputFilename) throws IllegalArgumentException, ReportProcessingException, ReportException;
+
+    public Map<OutputType, OutputStream> generateReports(
+            final Map<OutputType, OutputStream> outputs) throws ReportProcessingException, ReportException;
+
+    public PagedHtmlReport generatePagedReport() throws ReportProcessingException, ReportException;
 }
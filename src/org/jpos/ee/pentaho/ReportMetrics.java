@@ -0,0 +1,170 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jpos.util.Loggeable;
+
+/**
+ * Aggregated timings of the report runs, per report name and output type.
+ *
+ * @author jpaoletti
+ */
+public class ReportMetrics implements Loggeable {
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    public void record(ReportRun run) {
+        getStats(run.getReport() + "/" + run.getOutputType()).record(run);
+    }
+
+    public Stats getStats(String key) {
+        Stats s = stats.get(key);
+        if (s == null) {
+            final Stats created = new Stats();
+            s = stats.putIfAbsent(key, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @return output size of the last successful run of the report, 0 if
+     * there is none
+     */
+    public long getLastBytes(String report, OutputType outputType) {
+        final Stats s = stats.get(report + "/" + outputType);
+        return s != null ? s.getLastBytes() : 0L;
+    }
+
+    public Map<String, Stats> getStats() {
+        return new TreeMap<String, Stats>(stats);
+    }
+
+    public long getRuns() {
+        long res = 0;
+        for (Stats s : stats.values()) {
+            res += s.getRuns();
+        }
+        return res;
+    }
+
+    public long getFailures() {
+        long res = 0;
+        for (Stats s : stats.values()) {
+            res += s.getFailures();
+        }
+        return res;
+    }
+
+    public void reset() {
+        stats.clear();
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(indent + "<report-metrics>");
+        for (Map.Entry<String, Stats> entry : getStats().entrySet()) {
+            final Stats s = entry.getValue();
+            p.println(String.format("%s  <report name=\"%s\" runs=\"%d\" failures=\"%d\" cached=\"%d\" rows=\"%d\" bytes=\"%d\">",
+                    indent, entry.getKey(), s.getRuns(), s.getFailures(), s.getCached(), s.getRows(), s.getBytes()));
+            for (Map.Entry<String, LatencyHistogram> phase : s.getPhases().entrySet()) {
+                p.println(String.format("%s    <phase name=\"%s\" %s/>", indent, phase.getKey(), phase.getValue()));
+            }
+            p.println(indent + "  </report>");
+        }
+        p.println(indent + "</report-metrics>");
+    }
+
+    public static class Stats {
+
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong cached = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong lastBytes = new AtomicLong();
+        private final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentHashMap<String, LatencyHistogram>();
+
+        void record(ReportRun run) {
+            runs.incrementAndGet();
+            if (run.getFailure() != null) {
+                failures.incrementAndGet();
+            } else {
+                lastBytes.set(run.getBytes());
+            }
+            if (run.isCached()) {
+                cached.incrementAndGet();
+            }
+            if (run.getRows() > 0) {
+                rows.addAndGet(run.getRows());
+            }
+            bytes.addAndGet(run.getBytes());
+            for (Map.Entry<String, Long> entry : run.getPhases().entrySet()) {
+                getPhase(entry.getKey()).record(entry.getValue());
+            }
+        }
+
+        public LatencyHistogram getPhase(String phase) {
+            LatencyHistogram h = phases.get(phase);
+            if (h == null) {
+                final LatencyHistogram created = new LatencyHistogram();
+                h = phases.putIfAbsent(phase, created);
+                if (h == null) {
+                    h = created;
+                }
+            }
+            return h;
+        }
+
+        public Map<String, LatencyHistogram> getPhases() {
+            return new TreeMap<String, LatencyHistogram>(phases);
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getCached() {
+            return cached.get();
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getLastBytes() {
+            return lastBytes.get();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pentaho.reporting.libraries.resourceloader.Resource;
+import org.pentaho.reporting.libraries.resourceloader.ResourceBundleData;
+import org.pentaho.reporting.libraries.resourceloader.ResourceData;
+import org.pentaho.reporting.libraries.resourceloader.ResourceKey;
+import org.pentaho.reporting.libraries.resourceloader.ResourceLoadingException;
+import org.pentaho.reporting.libraries.resourceloader.ResourceManager;
+import org.pentaho.reporting.libraries.resourceloader.cache.CachingResourceBundleData;
+import org.pentaho.reporting.libraries.resourceloader.cache.CachingResourceData;
+import org.pentaho.reporting.libraries.resourceloader.cache.DefaultResourceBundleDataCacheEntry;
+import org.pentaho.reporting.libraries.resourceloader.cache.DefaultResourceDataCacheEntry;
+import org.pentaho.reporting.libraries.resourceloader.cache.ResourceBundleDataCache;
+import org.pentaho.reporting.libraries.resourceloader.cache.ResourceBundleDataCacheEntry;
+import org.pentaho.reporting.libraries.resourceloader.cache.ResourceDataCache;
+import org.pentaho.reporting.libraries.resourceloader.cache.ResourceDataCacheEntry;
+import org.pentaho.reporting.libraries.resourceloader.cache.ResourceFactoryCache;
+
+/**
+ * Bounded in memory cache of the report bundles, images and other resources
+ * loaded by the reports, installed as data and factory cache of the resource
+ * manager shared by all the generators of a {@link PentahoQBean}, and
+ * through {@link #getBundleCache()} as its bundle cache.
+ * <p/>
+ * Without it, the resource manager falls back to its null caches when
+ * EHCache is not available, as with the ehcache jar of lib/ that lacks
+ * slf4j, and every report reads and decodes its bundle and images again.
+ * Raw data, bundles and created resources are kept in least recently used
+ * order, up to a number of entries and, for the raw data and bundles, a
+ * total size.
+ * The resource manager checks the version of the cached entries, so changed
+ * files are loaded again.
+ *
+ * @author jpaoletti
+ */
+public class ReportResourceCache implements ResourceDataCache, ResourceFactoryCache {
+
+    private final int maxElements;
+    private final long maxSize;
+    private final LinkedHashMap<ResourceKey, DataEntry> data = new LinkedHashMap<ResourceKey, DataEntry>(16, 0.75f, true);
+    private final LinkedHashMap<ResourceKey, DataEntry> bundles = new LinkedHashMap<ResourceKey, DataEntry>(16, 0.75f, true);
+    private final LinkedHashMap<FactoryKey, Resource> resources = new LinkedHashMap<FactoryKey, Resource>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FactoryKey, Resource> eldest) {
+            return size() > maxElements;
+        }
+    };
+    private long size;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ResourceBundleDataCache bundleCache = new ResourceBundleDataCache() {
+
+        @Override
+        public ResourceBundleDataCacheEntry get(ResourceKey key) {
+            final DataEntry entry;
+            synchronized (data) {
+                entry = bundles.get(key);
+            }
+            count(entry != null);
+            return entry != null ? (ResourceBundleDataCacheEntry) entry.entry : null;
+        }
+
+        @Override
+        public ResourceBundleData put(ResourceManager manager, ResourceBundleData bundleData) throws ResourceLoadingException {
+            final ResourceBundleData cached = CachingResourceBundleData.createCached(bundleData);
+            final long length = Math.max(0L, cached.getLength());
+            if (length <= maxSize) {
+                add(bundles, cached.getKey(), new DataEntry(new DefaultResourceBundleDataCacheEntry(cached, manager), length));
+            }
+            return cached;
+        }
+
+        @Override
+        public void remove(ResourceBundleData bundleData) {
+            ReportResourceCache.this.remove(bundles, bundleData.getKey());
+        }
+
+        @Override
+        public void clear() {
+            ReportResourceCache.this.clear();
+        }
+
+        @Override
+        public void shutdown() {
+            clear();
+        }
+    };
+
+    /**
+     * @param maxElements maximum number of raw and of created resources
+     * @param maxSize maximum total bytes of the raw resources
+     */
+    public ReportResourceCache(int maxElements, long maxSize) {
+        this.maxElements = Math.max(1, maxElements);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public ResourceDataCacheEntry get(ResourceKey key) {
+        final DataEntry entry;
+        synchronized (data) {
+            entry = data.get(key);
+        }
+        count(entry != null);
+        return entry != null ? (ResourceDataCacheEntry) entry.entry : null;
+    }
+
+    @Override
+    public ResourceData put(ResourceManager manager, ResourceData resourceData) throws ResourceLoadingException {
+        final ResourceData cached = CachingResourceData.createCached(resourceData);
+        final long length = Math.max(0L, cached.getLength());
+        if (length <= maxSize) {
+            add(data, cached.getKey(), new DataEntry(new DefaultResourceDataCacheEntry(cached, manager), length));
+        }
+        return cached;
+    }
+
+    @Override
+    public void remove(ResourceData resourceData) {
+        remove(data, resourceData.getKey());
+    }
+
+    /**
+     * @return the cache of report bundles, sharing the limits of this cache
+     */
+    public ResourceBundleDataCache getBundleCache() {
+        return bundleCache;
+    }
+
+    /**
+     * Adds a raw resource or bundle, then drops the least recently used ones
+     * of its kind, and of the other kind if the total size is still over
+     */
+    private void add(LinkedHashMap<ResourceKey, DataEntry> map, ResourceKey key, DataEntry entry) {
+        synchronized (data) {
+            final DataEntry old = map.put(key, entry);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += entry.length;
+            trim(map, entry);
+            trim(map == data ? bundles : data, null);
+        }
+    }
+
+    private void trim(LinkedHashMap<ResourceKey, DataEntry> map, DataEntry keep) {
+        final Iterator<DataEntry> iter = map.values().iterator();
+        while ((size > maxSize || map.size() > maxElements) && iter.hasNext()) {
+            final DataEntry eldest = iter.next();
+            if (eldest == keep) {
+                break;
+            }
+            size -= eldest.length;
+            iter.remove();
+        }
+    }
+
+    private void remove(LinkedHashMap<ResourceKey, DataEntry> map, ResourceKey key) {
+        synchronized (data) {
+            final DataEntry old = map.remove(key);
+            if (old != null) {
+                size -= old.length;
+            }
+        }
+    }
+
+    @Override
+    public Resource get(ResourceKey key, Class[] targets) {
+        Resource res = null;
+        synchronized (resources) {
+            if (targets == null || targets.length == 0) {
+                res = resources.get(new FactoryKey(key, null));
+            } else {
+                for (int i = 0; i < targets.length && res == null; i++) {
+                    res = resources.get(new FactoryKey(key, targets[i]));
+                }
+            }
+        }
+        count(res != null);
+        return res;
+    }
+
+    @Override
+    public void put(Resource resource) {
+        synchronized (resources) {
+            resources.put(new FactoryKey(resource.getSource(), resource.getTargetType()), resource);
+        }
+    }
+
+    @Override
+    public void remove(Resource resource) {
+        synchronized (resources) {
+            resources.remove(new FactoryKey(resource.getSource(), resource.getTargetType()));
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (data) {
+            data.clear();
+            bundles.clear();
+            size = 0L;
+        }
+        synchronized (resources) {
+            resources.clear();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        clear();
+    }
+
+    private void count(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return raw resources, bundles and created resources kept
+     */
+    public int size() {
+        synchronized (data) {
+            synchronized (resources) {
+                return data.size() + bundles.size() + resources.size();
+            }
+        }
+    }
+
+    /**
+     * @return bytes of the raw resources and bundles kept
+     */
+    public long getSize() {
+        synchronized (data) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class DataEntry {
+
+        private final Object entry;
+        private final long length;
+
+        DataEntry(Object entry, long length) {
+            this.entry = entry;
+            this.length = length;
+        }
+    }
+
+    private static class FactoryKey {
+
+        private final ResourceKey key;
+        private final Class target;
+
+        FactoryKey(ResourceKey key, Class target) {
+            this.key = key;
+            this.target = target;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FactoryKey)) {
+                return false;
+            }
+            final FactoryKey other = (FactoryKey) obj;
+            return key.equals(other.key) && (target == null ? other.target == null : target.equals(other.target));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (target != null ? target.hashCode() : 0);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of rendered reports. Entries are keyed by report name, output type
+ * and a digest of the report parameters, and expire after the
+ * <code>cache-ttl</code> of their report.
+ * <p/>
+ * The number of reports and the bytes they take on the heap are bounded,
+ * evicting the least recently used ones. With overflow to disk the evicted
+ * reports are written to files instead, up to <code>maxDisk</code> bytes.
+ *
+ * @author jpaoletti
+ */
+public class ReportResultCache {
+
+    private final int maxElements;
+    private final long maxMemory;
+    private final File dir;
+    private final long maxDisk;
+    private final int maxEntrySize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memory;
+    private long disk;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxElements maximum number of reports kept in memory
+     * @param maxMemory heap used by all the reports kept in memory, in bytes
+     * @param dir directory of the evicted reports, <code>null</code> to
+     * drop them
+     * @param maxDisk disk used by all the evicted reports, in bytes
+     * @param maxEntrySize reports bigger than this (in bytes) are not cached
+     */
+    public ReportResultCache(int maxElements, long maxMemory, File dir, long maxDisk, int maxEntrySize) {
+        this.maxElements = maxElements;
+        this.maxMemory = maxMemory;
+        this.dir = dir;
+        this.maxDisk = dir != null ? maxDisk : 0L;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * Builds the cache key of a report run. Parameters are sorted by name so
+     * the key does not depend on the map implementation.
+     */
+    public static String key(String report, Map<String, Object> parameters, OutputType outputType) {
+        final StringBuilder sb = new StringBuilder();
+        if (parameters != null) {
+            for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(parameters).entrySet()) {
+                sb.append(entry.getKey()).append('=');
+                final Object value = entry.getValue();
+                if (value instanceof Object[]) {
+                    sb.append(Arrays.deepToString((Object[]) value));
+                } else if (value instanceof Date) {
+                    sb.append(((Date) value).getTime());
+                } else {
+                    sb.append(value);
+                }
+                sb.append('\n');
+            }
+        }
+        return String.format("%s:%s:%s", report, outputType, digest(sb.toString()));
+    }
+
+    public byte[] get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            final byte[] report = entry.report;
+            if (report != null) {
+                hits.incrementAndGet();
+                return report;
+            }
+            try {
+                final byte[] res = read(entry.file, (int) entry.size);
+                hits.incrementAndGet();
+                return res;
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (entries.get(key) == entry) {
+                        remove(key);
+                    }
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param key the run key
+     * @param report the rendered report
+     * @param ttl time to live in seconds
+     */
+    public void put(String key, byte[] report, int ttl) {
+        if (report.length > maxEntrySize || report.length > maxMemory) {
+            return;
+        }
+        final Entry entry = new Entry();
+        entry.report = report;
+        entry.size = report.length;
+        entry.expires = System.currentTimeMillis() + ttl * 1000L;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, entry);
+            memory += entry.size;
+            evict();
+        }
+    }
+
+    /**
+     * Wraps the given stream so everything written to it is also kept, up to
+     * the maximum entry size, to be stored once the report is done.
+     */
+    public CapturingOutputStream capture(OutputStream out) {
+        return new CapturingOutputStream(out, maxEntrySize);
+    }
+
+    public synchronized void clear() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            delete(it.next());
+            it.remove();
+        }
+        memory = 0L;
+        disk = 0L;
+    }
+
+    public void shutdown() {
+        clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return bytes of the reports kept in memory
+     */
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return bytes of the reports written to disk
+     */
+    public synchronized long getDisk() {
+        return disk;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void remove(String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.report != null) {
+            memory -= entry.size;
+        } else {
+            disk -= entry.size;
+        }
+        delete(entry);
+    }
+
+    /**
+     * Removes expired reports, then moves the least recently used ones to
+     * disk, or drops them, until the memory limits are met, and drops the
+     * least recently used ones on disk over its limit
+     */
+    private void evict() {
+        final long now = System.currentTimeMillis();
+        int inMemory = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.report != null) {
+                inMemory++;
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (entry.expires < now) {
+                if (entry.report != null) {
+                    inMemory--;
+                }
+                release(entry);
+                it.remove();
+            } else if (entry.report != null && (memory > maxMemory || inMemory > maxElements)) {
+                inMemory--;
+                if (!overflow(entry)) {
+                    release(entry);
+                    it.remove();
+                }
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && disk > maxDisk;) {
+            final Entry entry = it.next();
+            if (entry.file != null) {
+                release(entry);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a report evicted from memory to disk
+     *
+     * @return <code>false</code> if it has to be dropped instead
+     */
+    private boolean overflow(Entry entry) {
+        if (entry.size > maxDisk) {
+            return false;
+        }
+        try {
+            dir.mkdirs();
+            final File file = File.createTempFile("report", ".bin", dir);
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(entry.report);
+            } catch (IOException e) {
+                out.close();
+                file.delete();
+                throw e;
+            }
+            out.close();
+            memory -= entry.size;
+            disk += entry.size;
+            entry.file = file;
+            entry.report = null;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void delete(Entry entry) {
+        if (entry.file != null) {
+            entry.file.delete();
+        }
+    }
+
+    private static byte[] read(File file, int size) throws IOException {
+        final byte[] res = new byte[size];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(res);
+        } finally {
+            in.close();
+        }
+        return res;
+    }
+
+    private static String digest(String s) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+
+        private volatile byte[] report;
+        private volatile File file;
+        private long size;
+        private long expires;
+    }
+
+    public static class CapturingOutputStream extends FilterOutputStream {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final int limit;
+        private boolean overflow;
+
+        CapturingOutputStream(OutputStream out, int limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (!overflow) {
+                buffer.write(b);
+                overflow = buffer.size() > limit;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (!overflow) {
+                if (buffer.size() + len > limit) {
+                    overflow = true;
+                } else {
+                    buffer.write(b, off, len);
+                }
+            }
+        }
+
+        /**
+         * @return the captured bytes or <code>null</code> if the report went
+         * over the limit
+         */
+        public byte[] getCaptured() {
+            return overflow ? null : buffer.toByteArray();
+        }
+    }
+}
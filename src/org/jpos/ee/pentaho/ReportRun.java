@@ -0,0 +1,145 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jpos.util.Loggeable;
+
+/**
+ * Timings and counters of a single report run.
+ *
+ * @author jpaoletti
+ */
+public class ReportRun implements Loggeable {
+
+    public static final String DEFINITION = "definition";
+    public static final String DATA_FACTORY = "data-factory";
+    public static final String QUERY = "query";
+    public static final String LAYOUT = "layout";
+    public static final String TOTAL = "total";
+    private final String report;
+    private final OutputType outputType;
+    private final long start = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private long phaseStart = start;
+    private long rows = -1;
+    private long bytes;
+    private boolean cached;
+    private Throwable failure;
+
+    public ReportRun(String report, OutputType outputType) {
+        this.report = report;
+        this.outputType = outputType;
+    }
+
+    /**
+     * Starts timing a phase
+     */
+    public void begin() {
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the phase started by the last {@link #begin()}
+     */
+    public void end(String phase) {
+        add(phase, (System.nanoTime() - phaseStart) / 1000000L);
+    }
+
+    /**
+     * Adds the given milliseconds to a phase
+     */
+    public synchronized void add(String phase, long millis) {
+        final Long elapsed = phases.get(phase);
+        phases.put(phase, elapsed != null ? elapsed + millis : millis);
+    }
+
+    public synchronized long get(String phase) {
+        final Long elapsed = phases.get(phase);
+        return elapsed != null ? elapsed : 0L;
+    }
+
+    /**
+     * Ends the run
+     */
+    public void finish() {
+        add(TOTAL, (System.nanoTime() - start) / 1000000L);
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+
+    public String getReport() {
+        return report;
+    }
+
+    public OutputType getOutputType() {
+        return outputType;
+    }
+
+    public synchronized void addRows(long rows) {
+        this.rows = this.rows < 0 ? rows : this.rows + rows;
+    }
+
+    /**
+     * @return rows read by the report queries, -1 if unknown
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public void setFailure(Throwable failure) {
+        this.failure = failure;
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(String.format("%s<report-run name=\"%s\" output=\"%s\" rows=\"%d\" bytes=\"%d\" cached=\"%s\"%s>",
+                indent, report, outputType, getRows(), bytes, cached, failure != null ? " failed=\"true\"" : ""));
+        for (Map.Entry<String, Long> entry : getPhases().entrySet()) {
+            p.println(String.format("%s  <phase name=\"%s\" elapsed=\"%dms\"/>", indent, entry.getKey(), entry.getValue()));
+        }
+        if (failure != null) {
+            p.println(String.format("%s  <failure>%s</failure>", indent, failure));
+        }
+        p.println(indent + "</report-run>");
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A <code>&lt;schedule&gt;</code> of a report: when it runs, with which
+ * parameters, output type and destination, and how failed runs are retried.
+ * <p/>
+ * Parameter values and the destination are templates where
+ * <code>{date:FORMAT}</code> is replaced by the scheduled time formatted with
+ * the SimpleDateFormat pattern FORMAT, and <code>{date-N:FORMAT}</code> or
+ * <code>{date+N:FORMAT}</code> by that time moved N days, e.g.
+ * <code>{date-1:yyyy-MM-dd}</code> for the previous day. After that the
+ * destination is expanded as a {@link FilePatternSink} pattern.
+ *
+ * @author jpaoletti
+ */
+public class ReportSchedule {
+
+    private static final Pattern DATE = Pattern.compile("\\{date(?:([+-]\\d+))?:([^}]+)\\}");
+    private final String report;
+    private final CronExpression cron;
+    private final OutputType outputType;
+    private final String destination;
+    private Map<String, String> parameters = Collections.emptyMap();
+    private int jitter;
+    private int retries;
+    private long backoff;
+
+    public ReportSchedule(String report, CronExpression cron, OutputType outputType, String destination) {
+        this.report = report;
+        this.cron = cron;
+        this.outputType = outputType;
+        this.destination = destination;
+    }
+
+    public String getReport() {
+        return report;
+    }
+
+    public CronExpression getCron() {
+        return cron;
+    }
+
+    public OutputType getOutputType() {
+        return outputType;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return parameter templates by parameter name
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public void setParameters(Map<String, String> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * @return maximum random delay, in seconds, added to each start time
+     */
+    public int getJitter() {
+        return jitter;
+    }
+
+    public void setJitter(int jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return number of times a failed run is retried
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @return delay in ms before the first retry, doubled on each retry
+     */
+    public long getBackoff() {
+        return backoff;
+    }
+
+    public void setBackoff(long backoff) {
+        this.backoff = backoff;
+    }
+
+    /**
+     * @return the parameters of a run scheduled at the given time
+     */
+    public Map<String, Object> resolveParameters(Date scheduled) {
+        final Map<String, Object> res = new HashMap<String, Object>();
+        for (Map.Entry<String, String> e : parameters.entrySet()) {
+            res.put(e.getKey(), resolve(e.getValue(), scheduled));
+        }
+        return res;
+    }
+
+    /**
+     * @return the destination of a run scheduled at the given time
+     */
+    public String resolveDestination(Date scheduled) {
+        return resolve(destination, scheduled);
+    }
+
+    static String resolve(String template, Date scheduled) {
+        final Matcher m = DATE.matcher(template);
+        final StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            final Calendar c = Calendar.getInstance();
+            c.setTime(scheduled);
+            if (m.group(1) != null) {
+                c.add(Calendar.DAY_OF_MONTH, Integer.parseInt(m.group(1).replace("+", "")));
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(new SimpleDateFormat(m.group(2)).format(c.getTime())));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%s] %s %s", report, cron, outputType, destination);
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jpos.util.Log;
+import org.jpos.util.Loggeable;
+
+/**
+ * Runs the report schedules of a {@link PentahoQBean}.
+ * <p/>
+ * Each schedule fires at the times of its cron expression plus a random
+ * jitter, so schedules sharing the same expression do not all start at once.
+ * A fired run goes to a queue that is written to a file on every change, so
+ * pending runs and runs that exhausted their retries survive a restart. Due
+ * runs are executed on a fixed pool, whose size is the global limit of
+ * concurrent scheduled reports. A failed run is retried after the schedule
+ * backoff, doubled on each attempt.
+ *
+ * @author jpaoletti
+ */
+public class ReportScheduler implements Loggeable {
+
+    private final PentahoQBean qbean;
+    private volatile List<ReportSchedule> schedules;
+    private final int threads;
+    private final File queueFile;
+    private final Log log;
+    private final List<Run> queue = new ArrayList<Run>();
+    private final Random random = new Random();
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> pendingDispatch;
+    private long pendingDue;
+    private ExecutorService workers;
+    private volatile boolean running;
+    private long sequence;
+    private int bufferSize = AtomicFileOutputStream.DEFAULT_BUFFER_SIZE;
+    private boolean sync;
+
+    /**
+     * @param qbean the QBean used to generate the reports
+     * @param schedules schedules to run
+     * @param threads maximum number of scheduled reports running at once
+     * @param queueFile where the queue is persisted, <code>null</code> to keep
+     * it only in memory
+     * @param log log of the QBean
+     */
+    public ReportScheduler(PentahoQBean qbean, List<ReportSchedule> schedules, int threads, File queueFile, Log log) {
+        this.qbean = qbean;
+        this.schedules = schedules;
+        this.threads = Math.max(1, threads);
+        this.queueFile = queueFile;
+        this.log = log;
+    }
+
+    /**
+     * Sets how the report files are written
+     *
+     * @see AtomicFileOutputStream
+     */
+    public void setFileOptions(int bufferSize, boolean sync) {
+        this.bufferSize = bufferSize;
+        this.sync = sync;
+    }
+
+    /**
+     * Replaces the schedules. New schedules start firing at once; the ones
+     * that are no longer in the list stop at their next firing time. Runs
+     * already queued are kept.
+     */
+    public synchronized void setSchedules(List<ReportSchedule> schedules) {
+        final List<ReportSchedule> old = this.schedules;
+        this.schedules = schedules;
+        if (!running) {
+            return;
+        }
+        final Date now = new Date();
+        for (ReportSchedule schedule : schedules) {
+            if (!contains(old, schedule)) {
+                scheduleNext(schedule, now);
+            }
+        }
+    }
+
+    private static boolean contains(List<ReportSchedule> schedules, ReportSchedule schedule) {
+        for (ReportSchedule s : schedules) {
+            if (s == schedule) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void start() {
+        load();
+        final String name = qbean.getName();
+        timer = Executors.newSingleThreadScheduledExecutor(threadFactory(name + "-scheduler-"));
+        workers = Executors.newFixedThreadPool(threads, threadFactory(name + "-scheduled-"));
+        running = true;
+        final Date now = new Date();
+        for (ReportSchedule schedule : schedules) {
+            scheduleNext(schedule, now);
+        }
+        dispatch();
+    }
+
+    /**
+     * Stops the scheduler. Runs in progress are interrupted and remain queued
+     * for the next start.
+     */
+    public void stop() {
+        running = false;
+        synchronized (this) {
+            if (timer != null) {
+                timer.shutdownNow();
+                pendingDispatch = null;
+            }
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+        try {
+            if (workers != null) {
+                workers.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Run run : queue) {
+                run.dispatched = false;
+            }
+            persist();
+        }
+    }
+
+    /**
+     * @return runs waiting to be executed or retried, or running
+     */
+    public synchronized int getPendingCount() {
+        int n = 0;
+        for (Run run : queue) {
+            if (!run.failed) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return runs that exhausted their retries
+     */
+    public synchronized int getFailedCount() {
+        return queue.size() - getPendingCount();
+    }
+
+    /**
+     * Queues again the runs that exhausted their retries
+     *
+     * @return number of runs queued
+     */
+    public synchronized int retryFailed() {
+        int n = 0;
+        for (Run run : queue) {
+            if (run.failed) {
+                run.failed = false;
+                run.attempts = 0;
+                run.due = System.currentTimeMillis();
+                n++;
+            }
+        }
+        persist();
+        dispatch();
+        return n;
+    }
+
+    /**
+     * Discards the runs that exhausted their retries
+     *
+     * @return number of runs removed
+     */
+    public synchronized int clearFailed() {
+        final int n = getFailedCount();
+        for (int i = queue.size() - 1; i >= 0; i--) {
+            if (queue.get(i).failed) {
+                queue.remove(i);
+            }
+        }
+        persist();
+        return n;
+    }
+
+    @Override
+    public synchronized void dump(PrintStream p, String indent) {
+        final String inner = indent + "  ";
+        p.println(indent + "<report-scheduler threads=\"" + threads + "\">");
+        for (ReportSchedule schedule : schedules) {
+            p.println(inner + "<schedule>" + schedule + "</schedule>");
+        }
+        for (Run run : queue) {
+            p.println(inner + run);
+        }
+        p.println(indent + "</report-scheduler>");
+    }
+
+    private void scheduleNext(final ReportSchedule schedule, Date after) {
+        final Date next = schedule.getCron().next(after);
+        if (next == null || !running) {
+            return;
+        }
+        long delay = next.getTime() - System.currentTimeMillis();
+        if (schedule.getJitter() > 0) {
+            synchronized (random) {
+                delay += random.nextInt(schedule.getJitter() * 1000);
+            }
+        }
+        try {
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    fire(schedule, next);
+                }
+            }, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    private void fire(ReportSchedule schedule, Date scheduled) {
+        if (!contains(schedules, schedule)) {
+            return;
+        }
+        final Run run = new Run();
+        run.report = schedule.getReport();
+        run.scheduled = scheduled;
+        run.parameters = new HashMap<String, Object>(schedule.resolveParameters(scheduled));
+        run.outputType = schedule.getOutputType();
+        run.destination = schedule.resolveDestination(scheduled);
+        run.retries = schedule.getRetries();
+        run.backoff = schedule.getBackoff();
+        run.due = System.currentTimeMillis();
+        synchronized (this) {
+            run.id = ++sequence;
+            queue.add(run);
+            persist();
+        }
+        scheduleNext(schedule, scheduled);
+        dispatch();
+    }
+
+    private synchronized void dispatch() {
+        if (!running) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (final Run run : queue) {
+            if (run.failed || run.dispatched) {
+                continue;
+            }
+            if (run.due > now) {
+                next = Math.min(next, run.due);
+                continue;
+            }
+            run.dispatched = true;
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    execute(run);
+                }
+            });
+        }
+        if (next != Long.MAX_VALUE && (pendingDispatch == null || next < pendingDue)) {
+            // a single pending dispatch, for the earliest due run
+            if (pendingDispatch != null) {
+                pendingDispatch.cancel(false);
+            }
+            final long due = next;
+            pendingDue = due;
+            pendingDispatch = timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized (ReportScheduler.this) {
+                        if (pendingDue == due) {
+                            pendingDispatch = null;
+                        }
+                    }
+                    dispatch();
+                }
+            }, next - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void execute(Run run) {
+        final FilePatternSink files = new FilePatternSink(run.destination, bufferSize, sync);
+        final ReportSink sink = qbean.getSink(run.report, files);
+        Throwable error = null;
+        OutputStream out = null;
+        try {
+            final AbstractReportGenerator generator = qbean.getGenerator(run.report, run.parameters);
+            out = sink.open(0, run.parameters);
+            generator.generateReport(run.outputType, out);
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            if (out != null) {
+                try {
+                    sink.close(0, out, error == null);
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            run.dispatched = false;
+            if (error == null) {
+                // also while stopping, so the run is not persisted again
+                queue.remove(run);
+                log.info(String.format("Scheduled report %s done: %s", run, run.destination));
+            } else if (!running) {
+                // interrupted by stop, kept queued for the next start
+                return;
+            } else {
+                run.attempts++;
+                run.error = error.toString();
+                if (run.attempts > run.retries) {
+                    run.failed = true;
+                    log.error(String.format("Scheduled report %s failed", run), error);
+                } else {
+                    run.due = System.currentTimeMillis() + (run.backoff << Math.min(run.attempts - 1, 16));
+                    log.warn(String.format("Scheduled report %s failed, retrying at %s", run, new Date(run.due)), error);
+                }
+            }
+            persist();
+            dispatch();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (queueFile == null || !queueFile.exists()) {
+            return;
+        }
+        try {
+            final ObjectInputStream in = new ObjectInputStream(new FileInputStream(queueFile));
+            try {
+                queue.addAll((List<Run>) in.readObject());
+            } finally {
+                in.close();
+            }
+            for (Run run : queue) {
+                run.dispatched = false;
+                sequence = Math.max(sequence, run.id);
+            }
+            log.info(String.format("%d scheduled runs loaded from %s", queue.size(), queueFile));
+        } catch (Exception e) {
+            log.error("Unable to load scheduled runs from " + queueFile, e);
+        }
+    }
+
+    /**
+     * Writes the queue to a temporary file, then renames it over the queue
+     * file, so a crash never leaves a partial queue.
+     */
+    private void persist() {
+        if (queueFile == null) {
+            return;
+        }
+        try {
+            final File dir = queueFile.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            final File tmp = new File(queueFile.getPath() + ".tmp");
+            final FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                final ObjectOutputStream out = new ObjectOutputStream(fos);
+                out.writeObject(new ArrayList<Run>(queue));
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(queueFile) && !(queueFile.delete() && tmp.renameTo(queueFile))) {
+                throw new IOException("Unable to rename " + tmp + " to " + queueFile);
+            }
+        } catch (IOException e) {
+            log.error("Unable to persist scheduled runs to " + queueFile, e);
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A fired schedule, with its parameters and destination already resolved
+     */
+    static class Run implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        long id;
+        String report;
+        Date scheduled;
+        HashMap<String, Object> parameters;
+        OutputType outputType;
+        String destination;
+        int retries;
+        long backoff;
+        int attempts;
+        long due;
+        boolean failed;
+        String error;
+        transient boolean dispatched;
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("<run id=\"").append(id).append("\" report=\"").append(report)
+                    .append("\" scheduled=\"").append(scheduled)
+                    .append("\" type=\"").append(outputType)
+                    .append("\" attempts=\"").append(attempts).append('"');
+            if (failed) {
+                sb.append(" failed=\"true\"");
+            }
+            if (error != null) {
+                sb.append(" error=\"").append(error).append('"');
+            }
+            return sb.append("/>").toString();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Destination of the reports generated by a batch.
+ *
+ * @author jpaoletti
+ */
+public interface ReportSink {
+
+    /**
+     * @param index position of the item in the batch
+     * @param parameters parameters of the item
+     * @return the stream where the report is written
+     */
+    public OutputStream open(int index, Map<String, Object> parameters) throws IOException;
+
+    /**
+     * Called once the report was written, or failed
+     *
+     * @param success false if the generation failed
+     */
+    public void close(int index, OutputStream out, boolean success) throws IOException;
+}
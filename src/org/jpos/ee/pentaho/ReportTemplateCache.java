@@ -0,0 +1,116 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pentaho.reporting.engine.classic.core.MasterReport;
+
+/**
+ * Keeps the parsed report definitions so the .prpt file is only parsed again
+ * when it changes on disk. Callers always receive a clone of the cached
+ * template, so they are free to set data factories and parameters on it.
+ *
+ * @author jpaoletti
+ */
+public class ReportTemplateCache {
+
+    private final Map<PentahoReportDefinition, Entry> templates = new ConcurrentHashMap<PentahoReportDefinition, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param definition the report definition
+     * @return a copy of the cached template or <code>null</code> if the
+     * template was never loaded or its file was modified since then
+     */
+    public MasterReport get(PentahoReportDefinition definition) {
+        final Entry entry = templates.get(definition);
+        if (entry != null && entry.lastModified == lastModified(definition)) {
+            final MasterReport report = entry.copy();
+            if (report != null) {
+                hits.incrementAndGet();
+                return report;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a freshly parsed template. A private copy is kept, so the given
+     * report can still be used by the caller.
+     *
+     * @param definition the report definition
+     * @param report the parsed report
+     * @param lastModified modification time of the report file taken before
+     * parsing it
+     */
+    public void put(PentahoReportDefinition definition, MasterReport report, long lastModified) {
+        try {
+            templates.put(definition, new Entry((MasterReport) report.clone(), lastModified));
+        } catch (CloneNotSupportedException e) {
+            templates.remove(definition);
+        }
+    }
+
+    public void remove(PentahoReportDefinition definition) {
+        templates.remove(definition);
+    }
+
+    public void clear() {
+        templates.clear();
+    }
+
+    public int size() {
+        return templates.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public static long lastModified(PentahoReportDefinition definition) {
+        return definition.getReportFile() != null ? new File(definition.getReportFile()).lastModified() : 0L;
+    }
+
+    private static class Entry {
+
+        private final MasterReport template;
+        private final long lastModified;
+
+        Entry(MasterReport template, long lastModified) {
+            this.template = template;
+            this.lastModified = lastModified;
+        }
+
+        MasterReport copy() {
+            try {
+                return (MasterReport) template.clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.pentaho.reporting.engine.classic.core.AttributeNames;
+import org.pentaho.reporting.engine.classic.core.Band;
+import org.pentaho.reporting.engine.classic.core.Element;
+import org.pentaho.reporting.engine.classic.core.MasterReport;
+
+/**
+ * Writes a result set as CSV, as a plain HTML table or as XLSX, one row at a
+ * time, without going through the report layout. Memory usage does not
+ * depend on the number of rows.
+ *
+ * @author jpaoletti
+ */
+public class ResultSetStreamer {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private final OutputType outputType;
+    private final List<String> fields;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+    private File tempDir;
+
+    /**
+     * @param outputType {@link OutputType#CSV}, {@link OutputType#HTML_TABLE}
+     * or {@link OutputType#XLSX}
+     * @param fields the columns to write, in order. When empty every column of
+     * the result set is written.
+     */
+    public ResultSetStreamer(OutputType outputType, List<String> fields) {
+        if (!outputType.isStreamed()) {
+            throw new IllegalArgumentException("Unsupported streaming output: " + outputType);
+        }
+        this.outputType = outputType;
+        this.fields = fields;
+    }
+
+    /**
+     * @param tempDir directory for temporary files of the XLSX output,
+     * <code>null</code> for the default temporary directory
+     */
+    public void setTempDir(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Returns the fields shown in the item band of the report, in the order
+     * they are defined.
+     */
+    public static List<String> getFields(MasterReport report) {
+        final Set<String> res = new LinkedHashSet<String>();
+        if (report != null) {
+            collectFields(report.getItemBand(), res);
+        }
+        return new ArrayList<String>(res);
+    }
+
+    private static void collectFields(Band band, Set<String> res) {
+        for (Element e : band.getElementArray()) {
+            final Object field = e.getAttribute(AttributeNames.Core.NAMESPACE, AttributeNames.Core.FIELD);
+            if (field != null) {
+                res.add(field.toString());
+            }
+            if (e instanceof Band) {
+                collectFields((Band) e, res);
+            }
+        }
+    }
+
+    /**
+     * Writes every row of the result set. The output stream is flushed but
+     * not closed.
+     *
+     * @return number of rows written
+     */
+    public long write(ResultSet rs, OutputStream out) throws SQLException, IOException {
+        final int[] columns = resolveColumns(rs.getMetaData());
+        final ResultSetMetaData md = rs.getMetaData();
+        if (outputType == OutputType.XLSX) {
+            final String[] headers = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                headers[i] = md.getColumnLabel(columns[i]);
+            }
+            return new XlsxStreamWriter(tempDir).write(headers, rs, columns, out);
+        }
+        final Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+        long rows = 0;
+        if (outputType == OutputType.HTML_TABLE) {
+            w.write("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/></head><body><table>\n<tr>");
+            for (int c : columns) {
+                w.write("<th>");
+                w.write(escapeHtml(md.getColumnLabel(c)));
+                w.write("</th>");
+            }
+            w.write("</tr>\n");
+            while (rs.next()) {
+                w.write("<tr>");
+                for (int c : columns) {
+                    w.write("<td>");
+                    w.write(escapeHtml(format(rs.getObject(c))));
+                    w.write("</td>");
+                }
+                w.write("</tr>\n");
+                rows++;
+            }
+            w.write("</table></body></html>\n");
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    w.write(',');
+                }
+                w.write(escapeCsv(md.getColumnLabel(columns[i])));
+            }
+            w.write("\r\n");
+            while (rs.next()) {
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        w.write(',');
+                    }
+                    w.write(escapeCsv(format(rs.getObject(columns[i]))));
+                }
+                w.write("\r\n");
+                rows++;
+            }
+        }
+        w.flush();
+        return rows;
+    }
+
+    private int[] resolveColumns(ResultSetMetaData md) throws SQLException {
+        final List<Integer> res = new ArrayList<Integer>();
+        if (fields != null) {
+            for (String field : fields) {
+                for (int i = 1; i <= md.getColumnCount(); i++) {
+                    if (field.equalsIgnoreCase(md.getColumnLabel(i))) {
+                        res.add(i);
+                        break;
+                    }
+                }
+            }
+        }
+        if (res.isEmpty()) {
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                res.add(i);
+            }
+        }
+        final int[] columns = new int[res.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = res.get(i);
+        }
+        return columns;
+    }
+
+    private String format(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof java.util.Date) {
+            return dateFormat.format((java.util.Date) value);
+        }
+        return value.toString();
+    }
+
+    private static String escapeCsv(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    private static String escapeHtml(String s) {
+        if (s == null) {
+            return "";
+        }
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
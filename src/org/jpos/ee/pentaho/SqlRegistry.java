@@ -0,0 +1,105 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Report queries loaded once and kept already parsed. When reload is enabled
+ * a query is read again if its file was modified.
+ *
+ * @author jpaoletti
+ */
+public class SqlRegistry {
+
+    private final Map<String, Entry> queries = new ConcurrentHashMap<String, Entry>();
+    private final String encoding;
+    private final boolean reload;
+
+    public SqlRegistry(String encoding, boolean reload) {
+        this.encoding = encoding;
+        this.reload = reload;
+    }
+
+    /**
+     * Reads and parses the given query file
+     */
+    public SqlTemplate load(String path) throws IOException {
+        final File file = new File(path);
+        final long lastModified = file.lastModified();
+        final SqlTemplate template = new SqlTemplate(read(file, encoding));
+        queries.put(path, new Entry(template, lastModified));
+        return template;
+    }
+
+    /**
+     * @return the parsed query, loading it if it was not loaded yet or, when
+     * reload is enabled, if its file changed
+     */
+    public SqlTemplate get(String path) throws IOException {
+        final Entry entry = queries.get(path);
+        if (entry == null || reload && entry.lastModified != new File(path).lastModified()) {
+            return load(path);
+        }
+        return entry.template;
+    }
+
+    public void remove(String path) {
+        queries.remove(path);
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public static String read(File file, String encoding) throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(file), encoding);
+        try {
+            final StringBuilder sb = new StringBuilder((int) file.length());
+            final char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static class Entry {
+
+        private final SqlTemplate template;
+        private final long lastModified;
+
+        Entry(SqlTemplate template, long lastModified) {
+            this.template = template;
+            this.lastModified = lastModified;
+        }
+    }
+}
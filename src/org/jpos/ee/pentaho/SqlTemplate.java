@@ -0,0 +1,238 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jpos.ee.pentaho.exception.QueryNotFoundException;
+
+/**
+ * A report query with its <code>@NAME@</code> placeholders already located.
+ * <p/>
+ * Placeholders are turned into <code>${SQL_NAME}</code> report parameters so
+ * {@link org.pentaho.reporting.engine.classic.core.modules.misc.datafactory.sql.SQLReportDataFactory}
+ * binds them on a prepared statement. A placeholder written between single
+ * quotes (<code>'@NAME@'</code>) is bound as well, the quotes are dropped.
+ * Only the placeholders explicitly listed as literals are replaced by the
+ * parameter value as text, which is meant for identifiers such as table or
+ * column names that can not be bound.
+ * <p/>
+ * A placeholder inside a longer quoted literal, as in
+ * <code>LIKE '%@NAME@%'</code>, or inside a double quoted or backtick
+ * identifier, can not be bound without changing the meaning of the query, so
+ * building the query fails unless it is listed as a literal. Placeholders in
+ * <code>--</code> and <code>/* *&#47;</code> comments are left as they are.
+ * A bound placeholder always takes a single value: in <code>IN (@IDS@)</code>
+ * a "1,2,3" value is one string, not three numbers.
+ * <p/>
+ * Building the query fails if a placeholder has no SQL_ parameter, instead
+ * of binding it as null.
+ *
+ * @author jpaoletti
+ */
+public class SqlTemplate {
+
+    public static final String SQL_PREFIX = "SQL_";
+    private static final Pattern QUOTED_PLACEHOLDER = Pattern.compile("'@(\\w+)@'");
+    private static final Pattern PLACEHOLDER = Pattern.compile("@(\\w+)@");
+    private static final int CODE = 0;
+    private static final int LITERAL = 1;
+    private static final int IDENTIFIER = 2;
+    private static final int BACKTICK = 3;
+    private static final int LINE_COMMENT = 4;
+    private static final int BLOCK_COMMENT = 5;
+    private final String sql;
+    private final List<Object> parts;
+    private final Set<String> parameterNames;
+
+    public SqlTemplate(String sql) {
+        this.sql = sql;
+        final List<Object> p = new ArrayList<Object>();
+        final Set<String> names = new LinkedHashSet<String>();
+        final Matcher quoted = QUOTED_PLACEHOLDER.matcher(sql);
+        final Matcher m = PLACEHOLDER.matcher(sql);
+        final int length = sql.length();
+        int last = 0;
+        int state = CODE;
+        int i = 0;
+        while (i < length) {
+            final char c = sql.charAt(i);
+            final char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+            Matcher found = null;
+            switch (state) {
+                case CODE:
+                    if (c == '-' && next == '-') {
+                        state = LINE_COMMENT;
+                        i++;
+                    } else if (c == '/' && next == '*') {
+                        state = BLOCK_COMMENT;
+                        i++;
+                    } else if (c == '\'') {
+                        quoted.region(i, length);
+                        if (quoted.lookingAt()) {
+                            found = quoted;
+                        } else {
+                            state = LITERAL;
+                        }
+                    } else if (c == '"') {
+                        state = IDENTIFIER;
+                    } else if (c == '`') {
+                        state = BACKTICK;
+                    } else if (c == '@') {
+                        found = m;
+                    }
+                    break;
+                case LITERAL:
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '\'') {
+                        // '' closes and opens the literal again
+                        state = CODE;
+                    } else if (c == '@') {
+                        found = m;
+                    }
+                    break;
+                case IDENTIFIER:
+                case BACKTICK:
+                    if (c == (state == IDENTIFIER ? '"' : '`')) {
+                        state = CODE;
+                    } else if (c == '@') {
+                        found = m;
+                    }
+                    break;
+                case LINE_COMMENT:
+                    if (c == '\n') {
+                        state = CODE;
+                    }
+                    break;
+                default:
+                    if (c == '*' && next == '/') {
+                        state = CODE;
+                        i++;
+                    }
+                    break;
+            }
+            if (found == m) {
+                m.region(i, length);
+                if (!m.lookingAt()) {
+                    found = null;
+                }
+            }
+            if (found != null) {
+                p.add(sql.substring(last, i));
+                p.add(new Placeholder(found.group(1), found == quoted, state != CODE));
+                names.add(found.group(1));
+                last = found.end();
+                i = last;
+            } else {
+                i++;
+            }
+        }
+        p.add(sql.substring(last));
+        this.parts = Collections.unmodifiableList(p);
+        this.parameterNames = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @param literals names (without the SQL_ prefix) of the placeholders to
+     * be replaced as text
+     * @param parameters the SQL_ parameters, used for literal placeholders
+     * @return the query with bound placeholders as <code>${SQL_NAME}</code>
+     * @throws QueryNotFoundException if a placeholder inside a quoted literal
+     * is not listed as a literal, or a placeholder has no parameter
+     */
+    public String toQuery(Set<String> literals, Map<String, Object> parameters) throws QueryNotFoundException {
+        return build(literals, parameters, null);
+    }
+
+    /**
+     * @param literals names (without the SQL_ prefix) of the placeholders to
+     * be replaced as text
+     * @param parameters the SQL_ parameters
+     * @param values receives the values to bind, in order
+     * @return the query with bound placeholders as JDBC <code>?</code>
+     * @throws QueryNotFoundException if a placeholder inside a quoted literal
+     * is not listed as a literal, or a placeholder has no parameter
+     */
+    public String toJdbcQuery(Set<String> literals, Map<String, Object> parameters, List<Object> values) throws QueryNotFoundException {
+        return build(literals, parameters, values);
+    }
+
+    private String build(Set<String> literals, Map<String, Object> parameters, List<Object> values) throws QueryNotFoundException {
+        final StringBuilder sb = new StringBuilder(sql.length() + 16);
+        for (Object part : parts) {
+            if (part instanceof Placeholder) {
+                final Placeholder ph = (Placeholder) part;
+                if (parameters == null || !parameters.containsKey(SQL_PREFIX + ph.name)) {
+                    throw new QueryNotFoundException(String.format(
+                            "Placeholder @%s@ has no %s%s parameter", ph.name, SQL_PREFIX, ph.name));
+                }
+                final Object value = parameters.get(SQL_PREFIX + ph.name);
+                if (literals != null && literals.contains(ph.name)) {
+                    if (ph.quoted) {
+                        sb.append('\'').append(value).append('\'');
+                    } else {
+                        sb.append(value);
+                    }
+                } else if (ph.embedded) {
+                    throw new QueryNotFoundException(String.format(
+                            "Placeholder @%s@ is inside a quoted literal or identifier and can not be bound; build the value in the parameter (e.g. LIKE @%s@ with \"%%value%%\") or list %s in literal-params",
+                            ph.name, ph.name, ph.name));
+                } else if (values != null) {
+                    sb.append('?');
+                    values.add(value);
+                } else {
+                    sb.append("${").append(SQL_PREFIX).append(ph.name).append('}');
+                }
+            } else {
+                sb.append((String) part);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return names of the placeholders found, without the SQL_ prefix
+     */
+    public Set<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    private static class Placeholder {
+
+        private final String name;
+        private final boolean quoted;
+        private final boolean embedded;
+
+        Placeholder(String name, boolean quoted, boolean embedded) {
+            this.name = name;
+            this.quoted = quoted;
+            this.embedded = embedded;
+        }
+    }
+}
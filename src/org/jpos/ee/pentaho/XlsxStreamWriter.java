@@ -0,0 +1,260 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a result set as an Office Open XML (xlsx) workbook with constant
+ * memory usage.
+ * <p/>
+ * POI 3.6 keeps the whole XSSF workbook on the heap, so the sheets are written
+ * directly as SpreadsheetML: rows go through a fixed size buffer into a
+ * temporary file per sheet and are copied into the zip package at the end.
+ * Strings are written inline, so there is no shared string table to keep
+ * either. A new sheet is started every {@link #MAX_ROWS} rows.
+ *
+ * @author jpaoletti
+ */
+public class XlsxStreamWriter {
+
+    public static final int MAX_ROWS = 1048575;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DAY = 86400000L;
+    private static final double EPOCH = 25569d;
+    private final File tempDir;
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    /**
+     * @param tempDir directory for the temporary sheet files, <code>null</code>
+     * for the default temporary directory
+     */
+    public XlsxStreamWriter(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Writes the package into the output stream, which is finished but not
+     * closed.
+     *
+     * @return number of rows written
+     */
+    public long write(String[] headers, ResultSet rs, int[] columns, OutputStream out) throws SQLException, IOException {
+        final List<File> sheets = new ArrayList<File>();
+        long rows = 0;
+        try {
+            boolean more = rs.next();
+            do {
+                final File sheet = File.createTempFile("pentaho-sheet", ".xml", tempDir);
+                sheets.add(sheet);
+                final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sheet), "UTF-8"), BUFFER_SIZE);
+                try {
+                    w.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+                    w.write("<worksheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"><sheetData>\n");
+                    writeHeader(w, headers);
+                    // the cursor is kept one row ahead, so a result that
+                    // fills the last sheet exactly does not open an empty one
+                    for (int sheetRows = 0; more && sheetRows < MAX_ROWS; sheetRows++) {
+                        writeRow(w, rs, columns, sheetRows + 2);
+                        rows++;
+                        more = rs.next();
+                    }
+                    w.write("</sheetData></worksheet>\n");
+                } finally {
+                    w.close();
+                }
+            } while (more);
+            writePackage(sheets, out);
+        } finally {
+            for (File sheet : sheets) {
+                sheet.delete();
+            }
+        }
+        return rows;
+    }
+
+    private void writeHeader(Writer w, String[] headers) throws IOException {
+        w.write("<row r=\"1\">");
+        for (int i = 0; i < headers.length; i++) {
+            writeString(w, reference(i, 1), headers[i]);
+        }
+        w.write("</row>\n");
+    }
+
+    private void writeRow(Writer w, ResultSet rs, int[] columns, int row) throws SQLException, IOException {
+        w.write("<row r=\"");
+        w.write(Integer.toString(row));
+        w.write("\">");
+        for (int i = 0; i < columns.length; i++) {
+            final Object value = rs.getObject(columns[i]);
+            final String ref = reference(i, row);
+            if (value == null) {
+                continue;
+            }
+            if (!isFinite(value)) {
+                // NaN and infinities are not valid numeric cell values
+                writeString(w, ref, value.toString());
+            } else if (value instanceof Number) {
+                w.write("<c r=\"" + ref + "\"><v>");
+                w.write(value.toString());
+                w.write("</v></c>");
+            } else if (value instanceof Boolean) {
+                w.write("<c r=\"" + ref + "\" t=\"b\"><v>");
+                w.write(((Boolean) value) ? "1" : "0");
+                w.write("</v></c>");
+            } else if (value instanceof Date) {
+                final long time = ((Date) value).getTime();
+                w.write("<c r=\"" + ref + "\" s=\"1\"><v>");
+                w.write(Double.toString((time + timeZone.getOffset(time)) / (double) DAY + EPOCH));
+                w.write("</v></c>");
+            } else {
+                writeString(w, ref, value.toString());
+            }
+        }
+        w.write("</row>\n");
+    }
+
+    private static boolean isFinite(Object value) {
+        if (value instanceof Double) {
+            return !((Double) value).isNaN() && !((Double) value).isInfinite();
+        }
+        if (value instanceof Float) {
+            return !((Float) value).isNaN() && !((Float) value).isInfinite();
+        }
+        return true;
+    }
+
+    private void writeString(Writer w, String ref, String s) throws IOException {
+        w.write("<c r=\"");
+        w.write(ref);
+        w.write("\" t=\"inlineStr\"><is><t>");
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    w.write("&lt;");
+                    break;
+                case '>':
+                    w.write("&gt;");
+                    break;
+                case '&':
+                    w.write("&amp;");
+                    break;
+                default:
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                        w.write(c);
+                    }
+            }
+        }
+        w.write("</t></is></c>");
+    }
+
+    /**
+     * @return the A1 style reference of a cell, column is zero based
+     */
+    private static String reference(int column, int row) {
+        final StringBuilder sb = new StringBuilder();
+        for (int c = column + 1; c > 0; c = (c - 1) / 26) {
+            sb.insert(0, (char) ('A' + (c - 1) % 26));
+        }
+        return sb.append(row).toString();
+    }
+
+    private void writePackage(List<File> sheets, OutputStream out) throws IOException {
+        final ZipOutputStream zip = new ZipOutputStream(out);
+        final StringBuilder types = new StringBuilder();
+        final StringBuilder workbook = new StringBuilder();
+        final StringBuilder rels = new StringBuilder();
+        types.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        types.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        types.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        types.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        types.append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        types.append("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        workbook.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        workbook.append("<workbook xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" ");
+        workbook.append("xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\"><sheets>");
+        rels.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        rels.append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+        for (int i = 1; i <= sheets.size(); i++) {
+            types.append(String.format("<Override PartName=\"/xl/worksheets/sheet%d.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>", i));
+            workbook.append(String.format("<sheet name=\"Sheet%d\" sheetId=\"%d\" r:id=\"rId%d\"/>", i, i, i));
+            rels.append(String.format("<Relationship Id=\"rId%d\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet\" Target=\"worksheets/sheet%d.xml\"/>", i, i));
+        }
+        rels.append(String.format("<Relationship Id=\"rId%d\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles\" Target=\"styles.xml\"/>", sheets.size() + 1));
+        types.append("</Types>");
+        workbook.append("</sheets></workbook>");
+        rels.append("</Relationships>");
+
+        putEntry(zip, "[Content_Types].xml", types.toString());
+        putEntry(zip, "_rels/.rels",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                + "</Relationships>");
+        putEntry(zip, "xl/workbook.xml", workbook.toString());
+        putEntry(zip, "xl/_rels/workbook.xml.rels", rels.toString());
+        putEntry(zip, "xl/styles.xml",
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+                + "<styleSheet xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\">"
+                + "<fonts count=\"1\"><font><sz val=\"10\"/><name val=\"Arial\"/></font></fonts>"
+                + "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill></fills>"
+                + "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+                + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+                + "<cellXfs count=\"2\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>"
+                + "<xf numFmtId=\"22\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/></cellXfs>"
+                + "</styleSheet>");
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        for (int i = 0; i < sheets.size(); i++) {
+            zip.putNextEntry(new ZipEntry(String.format("xl/worksheets/sheet%d.xml", i + 1)));
+            final InputStream in = new FileInputStream(sheets.get(i));
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    zip.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    private void putEntry(ZipOutputStream zip, String name, String content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes("UTF-8"));
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2011 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpos.ee.pentaho.exception;
+
+/**
+ * Indicates that a report run was not accepted by the report executor because
+ * its queue or the report concurrency limit is full.
+ */
+public class ReportRejectedException extends ReportException {
+
+    public ReportRejectedException() {
+        super();
+    }
+
+    public ReportRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ReportRejectedException(String message) {
+        super(message);
+    }
+
+    public ReportRejectedException(Throwable cause) {
+        super(cause);
+    }
+}